@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+/**
+ * Times the translation of single statements with very long expressions, to check that the time stays proportional to
+ * their length. This is built into its own jar, which isn't packaged with the tool - run it with:
+ *
+ *     java -cp e2a.jar:e2a-benchmarks.jar com.apama.e2a.ExprBenchmark [TERMS...]
+ *
+ * For each kind of expression and each number of terms (default: 1000, 2000 and 10000), it prints the best time of
+ * RUNS translations, after a warm-up. Stops repeating a translation once it has taken more than MAX_MILLIS in total,
+ * so that it also finishes against a build in which the time grows much faster than the length.
+ */
+final class ExprBenchmark {
+
+	private static final int RUNS = 5;
+	private static final long MAX_MILLIS = 10000;
+	private static final int WARM_UP_RUNS = 200;
+
+	/** The kinds of expression */
+	private static final String[] KINDS = { "sum", "and", "paren" };
+
+	private ExprBenchmark() {
+	}
+
+	/** A statement containing an expression of a kind with the number of terms given */
+	static String statement(String kind, int terms) {
+		StringBuilder ret = new StringBuilder();
+		switch (kind) {
+		case "sum": // 1 + 1 + 2 + ...
+			ret.append("on pattern [every timer:interval(1)] set x = 1");
+			for (int i = 1; i < terms; i++) ret.append(" + ").append(i);
+			break;
+		case "and": // a 'where' clause, which is also tried in the event template
+			ret.append("insert into CreateEvent select 'x' as text from EventCreated e where e.event.text = \"0\"");
+			for (int i = 1; i < terms; i++) ret.append(" and e.event.type != \"").append(i).append('"');
+			break;
+		case "paren": // (1 + (1) + (2) + ...)
+			ret.append("on pattern [every timer:interval(1)] set x = (1");
+			for (int i = 1; i < terms; i++) ret.append(" + (").append(i).append(')');
+			ret.append(')');
+			break;
+		default:
+			throw new IllegalArgumentException(kind);
+		}
+		return ret.append(";\n").toString();
+	}
+
+	public static void main(String[] args) {
+		int[] sizes = { 1000, 2000, 10000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+		}
+		final int[] terms = sizes;
+		// The code being measured may recurse once per term, so give it plenty of stack
+		Thread t = new Thread(null, () -> run(new TranslationEngine(false), terms), "benchmark", 1L << 30);
+		t.start();
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void run(TranslationEngine engine, int[] sizes) {
+		for (String kind : KINDS) {
+			String esper = statement(kind, 20);
+			for (int i = 0; i < WARM_UP_RUNS; i++) engine.translate(esper, "Benchmark.cep");
+		}
+		System.out.println("| kind  |  terms |    best ms |");
+		System.out.println("|-------|-------:|-----------:|");
+		for (String kind : KINDS) {
+			for (int terms : sizes) {
+				String esper = statement(kind, terms);
+				long best = Long.MAX_VALUE;
+				long total = 0;
+				for (int i = 0; i < RUNS && total < MAX_MILLIS * 1000000; i++) {
+					long start = System.nanoTime();
+					engine.translate(esper, "Benchmark.cep");
+					long time = System.nanoTime() - start;
+					best = Math.min(best, time);
+					total += time;
+				}
+				System.out.println(String.format("| %-5s | %6d | %10.1f |", kind, terms, best / 1e6));
+			}
+		}
+	}
+}
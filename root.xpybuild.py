@@ -34,6 +34,22 @@ Jar("${OUTPUT_DIR}/e2a/e2a.jar",
 	package=FindPaths(DirGeneratedByTarget("${OUTPUT_DIR}/e2a/antlr4-runtime-unzipped/"), includes=["**/*.class"]),
 	classpath=["${ANTLR4_JAR}"]).option("javac.options", ["-Xlint:all", "-Xlint:-serial", "-Werror"]).tags("e2a")
 
+# Benchmarks aren't part of the tool, so they go in a jar of their own that isn't packaged (see bench/ for how to run them)
+Jar("${OUTPUT_DIR}/e2a/e2a-benchmarks.jar",
+	compile=[FindPaths("bench/", includes=["**/*.java"])],
+	manifest={},
+	classpath=["${OUTPUT_DIR}/e2a/e2a.jar"]).option("javac.options", ["-Xlint:all", "-Xlint:-serial", "-Werror"]).tags("e2a-benchmarks").disableInFullBuild()
+
+# The list of classes that translating a typical Esper file loads, from a training run of the tool. The wrapper scripts
+# use it to create a class-data-sharing (CDS) archive the first time they run, which roughly halves the startup time of
+# later runs. The archive itself isn't built here, because it's only valid for the exact JVM that created it, with the
+# jar at the same absolute path - whereas the class list works wherever the tool is unzipped.
+CustomCommand("${OUTPUT_DIR}/e2a/e2a.classlist",
+	command=[os.getenv("APAMA_COMMON_JRE") + "/bin/java", "-XX:DumpLoadedClassList=${OUTPUT_DIR}/e2a/e2a.classlist",
+		"-jar", "${OUTPUT_DIR}/e2a/e2a.jar", "src/e2a-training.cep", "${OUTPUT_DIR}/e2a/e2a-training.mon"],
+	dependencies=["${OUTPUT_DIR}/e2a/e2a.jar", "src/e2a-training.cep"],
+	cwd=".").tags("e2a")
+
 # Put our wrapper script next to the jar, exactly as it would be in an installation
 Copy("${OUTPUT_DIR}/e2a/e2a.sh", "src/e2a.sh").tags("e2a")
 Copy("${OUTPUT_DIR}/e2a/e2a.bat", "src/e2a.bat").tags("e2a")
@@ -76,5 +92,5 @@ FilteredCopy("${OUTPUT_DIR}/e2a/README.md", "./README.tmpl.md",
 
 # Package up the jar, wrapper and documentation for ease of distribution
 Zip("${OUTPUT_DIR}/e2a/e2a-tool.zip", AddDestPrefix("e2a-tool/", [
-	"${OUTPUT_DIR}/e2a/e2a.jar", "${OUTPUT_DIR}/e2a/e2a.sh", "${OUTPUT_DIR}/e2a/e2a.bat", "CHANGELOG.md", "${OUTPUT_DIR}/e2a/README.md", 
+	"${OUTPUT_DIR}/e2a/e2a.jar", "${OUTPUT_DIR}/e2a/e2a.classlist", "${OUTPUT_DIR}/e2a/e2a.sh", "${OUTPUT_DIR}/e2a/e2a.bat", "CHANGELOG.md", "${OUTPUT_DIR}/e2a/README.md", 
 	"LICENSE.txt", "LICENSE.antlr4.txt"])).tags("e2a-package").disableInFullBuild()
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * What the translators of many files (BatchTranslator, WatchTranslator and ZipTranslator) have in common: which files
+ * they translate, where the translations go and the summary line they print for each file.
+ */
+final class BatchFiles {
+
+	// This class should not be instantiated.
+	private BatchFiles() {
+	}
+
+	/** Extension of the Esper files we look for - other files are skipped */
+	static final String ESPER_FILE_EXTENSION = ".cep";
+
+	/** Appended to the name of an Esper file to give the name of its translation */
+	static final String EPL_FILE_EXTENSION = ".mon";
+
+	/** Returns true if fileName is the name of an Esper file */
+	static boolean isEsperFile(String fileName) {
+		return fileName.endsWith(ESPER_FILE_EXTENSION);
+	}
+
+	/**
+	 * Where the translation of an input file goes
+	 * @param relative path of the input relative to the directory it was found in, used to mirror the layout under outputDir
+	 * @param outputDir root of the mirrored output tree, or null to write the output file next to its input
+	 */
+	static Path outputPathFor(Path input, Path relative, Path outputDir) {
+		String outName = input.getFileName().toString() + EPL_FILE_EXTENSION;
+		if (outputDir == null) {
+			return input.resolveSibling(outName);
+		}
+		return outputDir.resolve(relative.toString()).resolveSibling(outName);
+	}
+
+	/** The summary line for a file that was translated, for example "ok      a.cep -> a.cep.mon (2 TODOs, 15 ms)" */
+	static String translated(String outcome, Object input, Object output, int todos, long startNanos) {
+		return String.format("%-7s %s -> %s (%d TODOs, %d ms)", outcome, input, output, todos, elapsedMillis(startNanos));
+	}
+
+	/** The summary line for a file that was translated, including the number of warnings */
+	static String translated(String outcome, Object input, Object output, int todos, int warnings, long startNanos) {
+		return String.format("%-7s %s -> %s (%d TODOs, %d WARNs, %d ms)", outcome, input, output, todos, warnings, elapsedMillis(startNanos));
+	}
+
+	/** The summary line for a file that doesn't parse */
+	static String failed(Object input, EsperSyntaxException e, long startNanos) {
+		return String.format("FAILED  %s: syntax error at line %d:%d - %s (%d ms)",
+			input, e.getLine(), e.getCharPositionInLine(), e.getProblem(), elapsedMillis(startNanos));
+	}
+
+	/** The summary line for a file that couldn't be translated for any other reason */
+	static String failed(Object input, Object problem, long startNanos) {
+		return String.format("FAILED  %s: %s (%d ms)", input, problem, elapsedMillis(startNanos));
+	}
+
+	static long elapsedMillis(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000000;
+	}
+
+	/** A new SHA-256 digest, for telling whether the contents of a file have changed */
+	static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every Java implementation is required to support SHA-256
+		}
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Translates many Esper files in one go, using a bounded pool of worker threads so that a whole directory tree of
+ * modules only pays for JVM startup once.
+ *
+ * Each file is translated exactly as it would be on its own; only the scheduling differs.
+ */
+class BatchTranslator {
+
+	/* Shared by all of the worker threads */
+	private final TranslationEngine engine;
+
+	/* Translations of statements that are repeated in several files */
+	private final StatementCache statementCache = new StatementCache(StatementCache.DEFAULT_MAX_ENTRIES);
+
+	/* Root of the mirrored output tree, or null to write each output file next to its input */
+	private final Path outputDir;
+
+	/* Number of worker threads */
+	private final int threads;
+
+	/* If true, translate each file a statement at a time - see TranslationEngine.translateStreaming */
+	private final boolean streaming;
+
+	/* Previous translations to reuse where the input hasn't changed, or null to always translate */
+	private final TranslationCache cache;
+
+	/** Input files to translate, keyed by absolute path so each file is only translated once */
+	private final Map<Path, InputFile> inputs = new LinkedHashMap<Path, InputFile>();
+
+	BatchTranslator(boolean ignoreComments, boolean recoverFromSyntaxErrors, boolean streaming, Path outputDir, int threads, TranslationCache cache) {
+		this.engine = new TranslationEngine(ignoreComments, recoverFromSyntaxErrors, statementCache);
+		this.streaming = streaming;
+		this.outputDir = outputDir;
+		this.threads = threads;
+		this.cache = cache;
+	}
+
+	/**
+	 * Add the Esper files named by a single command line argument, which may be a file, a directory (searched
+	 * recursively for .cep files), a glob pattern or '@FILE' naming a file that lists further arguments one per line.
+	 */
+	void addInput(String arg) throws IOException {
+		if (arg.startsWith("@")) {
+			for (String line : Files.readAllLines(Paths.get(arg.substring(1)), StandardCharsets.UTF_8)) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#")) {
+					addInput(line);
+				}
+			}
+		} else if (isGlob(arg)) {
+			addGlob(arg);
+		} else {
+			Path path = Paths.get(arg);
+			if (Files.isDirectory(path)) {
+				addDirectory(path, null);
+			} else if (Files.exists(path)) {
+				addFile(path, path.getFileName());
+			} else {
+				throw new NoSuchFileException(arg);
+			}
+		}
+	}
+
+	/** Number of input files found so far */
+	int size() {
+		return inputs.size();
+	}
+
+	/** Returns true if a command line argument should be treated as a glob rather than a file name */
+	private static boolean isGlob(String arg) {
+		for (char c : GLOB_CHARS.toCharArray()) {
+			if (arg.indexOf(c) >= 0) return true;
+		}
+		return false;
+	}
+
+	/** Characters that have a special meaning in a glob */
+	private static final String GLOB_CHARS = "*?[{";
+
+	/**
+	 * Adds all files matching the glob, searching from the deepest directory in the pattern that has no wildcards.
+	 * If the part of the pattern after that directory starts with a '**' directory, that also matches no directories at
+	 * all (as it does in most shells), so that the files directly in the base directory are included - which a
+	 * PathMatcher on its own doesn't do.
+	 */
+	private void addGlob(String glob) throws IOException {
+		int firstWildcard = glob.length();
+		for (char c : GLOB_CHARS.toCharArray()) {
+			if (glob.indexOf(c) >= 0) firstWildcard = Math.min(firstWildcard, glob.indexOf(c));
+		}
+		int lastSeparator = Math.max(glob.lastIndexOf('/', firstWildcard), glob.lastIndexOf(File.separatorChar, firstWildcard));
+		Path base = Paths.get(lastSeparator < 0 ? "" : glob.substring(0, lastSeparator + 1));
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+		String rest = glob.substring(lastSeparator + 1);
+		if (rest.length() > 3 && rest.startsWith("**") && (rest.charAt(2) == '/' || rest.charAt(2) == File.separatorChar)) {
+			PathMatcher any = matcher;
+			PathMatcher top = FileSystems.getDefault().getPathMatcher("glob:" + glob.substring(0, lastSeparator + 1) + rest.substring(3));
+			matcher = p -> any.matches(p) || top.matches(p);
+		}
+		addDirectory(base, matcher);
+	}
+
+	/** Adds all Esper files under dir, optionally filtered by a matcher */
+	private void addDirectory(Path dir, PathMatcher matcher) throws IOException {
+		List<Path> found = new ArrayList<Path>();
+		try (Stream<Path> walk = Files.walk(dir)) {
+			walk.forEach(p -> {
+				if (Files.isRegularFile(p) && (matcher == null
+						? BatchFiles.isEsperFile(p.getFileName().toString())
+						: matcher.matches(p))) {
+					found.add(p);
+				}
+			});
+		}
+		found.sort(null);
+		for (Path p : found) {
+			addFile(p, dir.relativize(p));
+		}
+	}
+
+	private void addFile(Path file, Path relative) {
+		inputs.putIfAbsent(file.toAbsolutePath().normalize(), new InputFile(file, relative));
+	}
+
+	/** An Esper file to translate */
+	private static class InputFile {
+		/** Path as found from the command line arguments */
+		private final Path path;
+		/** Path relative to the directory it was found in, used to mirror the layout under outputDir */
+		private final Path relative;
+
+		InputFile(Path path, Path relative) {
+			this.path = path;
+			this.relative = relative;
+		}
+	}
+
+	/**
+	 * Translate all of the input files, printing a summary line per file (in input order) to out.
+	 * @return the number of files that failed to translate
+	 */
+	int run(PrintStream out) throws InterruptedException, IOException {
+		final long batchStart = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, TranslationThread.factory("e2a-batch"));
+		List<Future<FileResult>> results = new ArrayList<Future<FileResult>>();
+		for (InputFile input : inputs.values()) {
+			results.add(pool.submit(new TranslateOne(input.path, BatchFiles.outputPathFor(input.path, input.relative, outputDir))));
+		}
+		pool.shutdown();
+
+		int failed = 0;
+		int cacheHits = 0;
+		List<String> manifest = new ArrayList<String>();
+		for (Future<FileResult> future : results) {
+			FileResult result;
+			try {
+				result = future.get();
+			} catch (ExecutionException e) {
+				// TranslateOne reports its own failures, so this is only something unexpected such as running out of memory
+				result = new FileResult(false, "FAILED  " + e.getCause());
+			}
+			if (!result.ok) failed++;
+			if (result.cacheHit) cacheHits++;
+			if (result.manifestLine != null) manifest.add(result.manifestLine);
+			out.println(result.summary);
+		}
+		out.println(String.format("Translated %d of %d files in %.1f s using %d threads",
+			inputs.size() - failed, inputs.size(), (System.nanoTime() - batchStart) / 1e9, threads));
+		if (cache != null) {
+			cache.writeManifest(manifest, cacheHits, manifest.size() - cacheHits);
+			out.println(String.format("%d of %d files were unchanged and taken from the cache", cacheHits, manifest.size()));
+		}
+		out.println(String.format("%d of %d statements were repeats whose translation was reused",
+			statementCache.getHits(), statementCache.getHits() + statementCache.getMisses()));
+		out.println(String.format("%d of %d parses needed the full LL fallback after the fast SLL parse failed",
+			TranslationEngine.getLLFallbackCount(), TranslationEngine.getParseCount()));
+		return failed;
+	}
+
+	/** Outcome of translating one file */
+	private static class FileResult {
+		private final boolean ok;
+		/** Line to print for this file in the summary */
+		private final String summary;
+		/** True if the translation came from the cache */
+		private final boolean cacheHit;
+		/** Line for this file in the cache manifest, or null if there's no cache or the file couldn't be read */
+		private final String manifestLine;
+
+		FileResult(boolean ok, String summary) {
+			this(ok, summary, false, null);
+		}
+
+		FileResult(boolean ok, String summary, boolean cacheHit, String manifestLine) {
+			this.ok = ok;
+			this.summary = summary;
+			this.cacheHit = cacheHit;
+			this.manifestLine = manifestLine;
+		}
+	}
+
+	/** Translation of a single file */
+	private class TranslateOne implements Callable<FileResult> {
+		private final Path input;
+		private final Path output;
+
+		TranslateOne(Path input, Path output) {
+			this.input = input;
+			this.output = output;
+		}
+
+		@Override
+		public FileResult call() {
+			final long start = System.nanoTime();
+			try {
+				if (output.getParent() != null) {
+					Files.createDirectories(output.getParent());
+				}
+				if (streaming) {
+					int todos = Main.generateOutputEPLFileStreaming(output.toString(), engine, input);
+					return new FileResult(true, BatchFiles.translated("ok", input, output, todos, start));
+				}
+				if (cache == null) {
+					TranslationEngine.Result result = engine.translate(input);
+					Main.generateOutputEPLFile(output.toString(), result);
+					return new FileResult(true, BatchFiles.translated("ok", input, output, result.getTodoCount(), start));
+				}
+
+				byte[] source = Files.readAllBytes(input);
+				String key = cache.keyFor(input.getFileName().toString(), source);
+				String epl = cache.get(key);
+				boolean hit = epl != null;
+				if (!hit) {
+					epl = engine.translate(new String(source, StandardCharsets.UTF_8), input.getFileName().toString()).getEPLText();
+					cache.put(key, epl);
+				}
+				Main.generateOutputEPLFile(output.toString(), epl);
+				return new FileResult(true, BatchFiles.translated(hit ? "cached" : "ok", input, output, EPLOutput.countTodos(epl), start),
+					hit, TranslationCache.manifestLine(hit, key, input));
+			} catch (NoSuchFileException e) {
+				return new FileResult(false, BatchFiles.failed(input, "file not found", start));
+			} catch (EsperSyntaxException e) {
+				return new FileResult(false, BatchFiles.failed(input, e, start));
+			} catch (IOException | RuntimeException e) {
+				return new FileResult(false, BatchFiles.failed(input, e, start));
+			}
+		}
+	}
+}
@@ -24,6 +24,18 @@ public class ClassifySelectClause extends EsperBaseVisitor<Boolean> {
 		return true;
 	}
 
+	@Override
+	/** Windows can't be in an expression, so don't look through what could be a very deep tree of one */
+	public Boolean visitExpr(EsperParser.ExprContext ctx) {
+		return false;
+	}
+
+	@Override
+	/** Nor in a pattern */
+	public Boolean visitPattern(EsperParser.PatternContext ctx) {
+		return false;
+	}
+
 	@Override
 	public Boolean visitHavingClause(EsperParser.HavingClauseContext ctx) {
 		return true;
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A node of a small model of the EPL we generate, for the parts of a translation that later parts look at again.
+ *
+ * Rather than printing some EPL and then looking at the text to find out what it was (is it a number? is it in
+ * parentheses?), a translator builds one of these and prints it with toEPLOutput, which remembers the node it was
+ * printed from (see EPLOutput.getCode) until something else is added to it. Anything we don't have a node for yet is
+ * a Text node, which is just the EPL it prints.
+ *
+ * Nodes never change once they're built, and can be printed any number of times. The EPLOutputs that a node is built
+ * from belong to it afterwards, so mustn't be changed.
+ */
+abstract class EPLCode {
+
+	/** Print this as EPL */
+	abstract EPLOutput toEPLOutput();
+
+	/** An expression */
+	abstract static class Expr extends EPLCode {
+		/** The expression that epl was printed from, or a Text node for it if we don't know */
+		static Expr of(EPLOutput epl) {
+			EPLCode code = epl.getCode();
+			return code instanceof Expr ? (Expr) code : new Text(epl);
+		}
+	}
+
+	/** EPL we only have the text of */
+	static final class Text extends Expr {
+		private final EPLOutput epl;
+
+		/** epl belongs to this afterwards, so mustn't be changed */
+		Text(EPLOutput epl) {
+			this.epl = epl;
+		}
+
+		Text(String epl) {
+			this(new EPLOutput(epl));
+		}
+
+		@Override
+		EPLOutput toEPLOutput() {
+			return epl.copy();
+		}
+	}
+
+	/** A literal value, with the text it has in EPL */
+	static class Literal extends Expr {
+		private final String text;
+
+		Literal(String text) {
+			this.text = text;
+		}
+
+		String getText() {
+			return text;
+		}
+
+		@Override
+		EPLOutput toEPLOutput() {
+			return new EPLOutput(text).setCode(this);
+		}
+	}
+
+	/** A number */
+	static final class NumberLiteral extends Literal {
+		NumberLiteral(String text) {
+			super(text);
+		}
+
+		/** True if this is a decimal integer, so needs a fractional part to be a float */
+		boolean isDecimalInteger() {
+			String text = getText();
+			int start = text.startsWith("-") ? 1 : 0;
+			if (start == text.length()) return false;
+			for (int i = start; i < text.length(); i++) {
+				if (text.charAt(i) < '0' || text.charAt(i) > '9') return false;
+			}
+			return true;
+		}
+	}
+
+	/** A field of a variable, such as the coassignee of a listener */
+	static final class FieldPath extends Expr {
+		private final String variable;
+		private final String field;
+
+		FieldPath(String variable, String field) {
+			this.variable = variable;
+			this.field = field;
+		}
+
+		/**
+		 * Say that the translation of a member lookup on a variable is a FieldPath, if that's all it turned out to be
+		 * (the path mappings can also give things like casts, dictionary lookups and nested fields).
+		 */
+		static EPLOutput ifFieldOf(String variable, EPLOutput lookup) {
+			if (lookup.lineCount() != 1) return lookup;
+			String text = lookup.getFirstLine();
+			if (!text.startsWith(variable + ".")) return lookup;
+			String field = text.substring(variable.length() + 1);
+			if (field.isEmpty()) return lookup;
+			for (int i = 0; i < field.length(); i++) {
+				char c = field.charAt(i);
+				if (!Character.isLetterOrDigit(c) && c != '_' && c != '$' && c != '#') return lookup;
+			}
+			return lookup.setCode(new FieldPath(variable, field));
+		}
+
+		String getVariable() {
+			return variable;
+		}
+
+		String getField() {
+			return field;
+		}
+
+		@Override
+		EPLOutput toEPLOutput() {
+			return new EPLOutput(variable + "." + field).setCode(this);
+		}
+	}
+
+	/** Comparing two expressions, with an EPL comparison operator such as "<=" or "!=" */
+	static final class Comparison extends Expr {
+		private final Expr lhs;
+		private final String operator;
+		private final Expr rhs;
+
+		Comparison(Expr lhs, String operator, Expr rhs) {
+			this.lhs = lhs;
+			this.operator = operator;
+			this.rhs = rhs;
+		}
+
+		Expr getLhs() {
+			return lhs;
+		}
+
+		String getOperator() {
+			return operator;
+		}
+
+		Expr getRhs() {
+			return rhs;
+		}
+
+		@Override
+		EPLOutput toEPLOutput() {
+			return lhs.toEPLOutput().add(" " + operator + " ").add(rhs.toEPLOutput()).setCode(this);
+		}
+	}
+
+	/** An expression in parentheses */
+	static final class Parenthesised extends Expr {
+		private final Expr enclosed;
+
+		Parenthesised(Expr enclosed) {
+			this.enclosed = enclosed;
+		}
+
+		Expr getEnclosed() {
+			return enclosed;
+		}
+
+		@Override
+		EPLOutput toEPLOutput() {
+			return new EPLOutput().addLine("(").add(enclosed.toEPLOutput()).add(")").setCode(this);
+		}
+	}
+
+	/** Expressions that must all be true */
+	static final class And extends Expr {
+		private final List<Expr> operands;
+
+		And(List<Expr> operands) {
+			this.operands = Collections.unmodifiableList(new ArrayList<Expr>(operands));
+		}
+
+		@Override
+		EPLOutput toEPLOutput() {
+			EPLOutput ret = new EPLOutput();
+			for (int i = 0; i < operands.size(); i++) {
+				if (i > 0) ret.add(" and ");
+				ret.add(operands.get(i).toEPLOutput());
+			}
+			return ret.setCode(this);
+		}
+	}
+
+	/** An if statement without an else */
+	static final class If extends EPLCode {
+		private final Expr condition;
+		private final EPLOutput body;
+
+		If(Expr condition, EPLOutput body) {
+			this.condition = condition;
+			this.body = body;
+		}
+
+		@Override
+		EPLOutput toEPLOutput() {
+			return new EPLOutput().addLine("if (").add(condition.toEPLOutput()).add(")").addBlock(body.copy()).setCode(this);
+		}
+	}
+
+	/** Assigning an expression to a variable or field */
+	static final class Assignment extends EPLCode {
+		private final EPLOutput target;
+		private final Expr value;
+
+		Assignment(EPLOutput target, Expr value) {
+			this.target = target;
+			this.value = value;
+		}
+
+		@Override
+		EPLOutput toEPLOutput() {
+			return target.copy().add(" := ").add(value.toEPLOutput()).add(";").setCode(this);
+		}
+	}
+
+	/** Sending an event to a channel */
+	static final class Send extends EPLCode {
+		private final String event;
+		private final String channel;
+
+		Send(String event, String channel) {
+			this.event = event;
+			this.channel = channel;
+		}
+
+		@Override
+		EPLOutput toEPLOutput() {
+			return new EPLOutput(String.format("send %s to %s;", event, channel)).setCode(this);
+		}
+	}
+
+	/** Routing an event to the front of the queue of this context */
+	static final class Route extends EPLCode {
+		private final String event;
+
+		Route(String event) {
+			this.event = event;
+		}
+
+		@Override
+		EPLOutput toEPLOutput() {
+			return new EPLOutput("route " + event + ";").setCode(this);
+		}
+	}
+
+	/** An action of the monitor, preceded by an empty line and followed by another */
+	static final class Action extends EPLCode {
+		private final String name;
+		/** Type of each parameter, keyed by name, in order */
+		private final Map<String, String> params;
+		/** Empty for an action that doesn't return anything */
+		private final String returnType;
+		/** For the doc comment - empty for no doc comment */
+		private final String description;
+		private final EPLOutput body;
+
+		Action(String name, Map<String, String> params, String returnType, String description, EPLOutput body) {
+			this.name = name;
+			this.params = params;
+			this.returnType = returnType == null ? "" : returnType;
+			this.description = description;
+			this.body = body;
+		}
+
+		@Override
+		EPLOutput toEPLOutput() {
+			EPLOutput ret = new EPLOutput().addLine(" ");
+			if (!description.trim().isEmpty()) {
+				ret.addLine("/**").addLine("* ").add(description).addLine("*/");
+			}
+			ret.addLine("action ").add(name).add("(");
+			Iterator<Map.Entry<String, String>> it = params.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, String> param = it.next();
+				ret.add(param.getValue()).add(" " + param.getKey());
+				if (it.hasNext()) {
+					ret.add(", ");
+				}
+			}
+			ret.add(")");
+			if (!returnType.trim().isEmpty()) {
+				ret.add(" returns ").add(returnType);
+			}
+			return ret.addBlock(body.copy()).addLine(" ").setCode(this);
+		}
+	}
+}
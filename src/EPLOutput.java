@@ -7,40 +7,56 @@
  */
 package com.apama.e2a;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.NavigableMap;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
 
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.misc.Interval;
 
-/** Like a StringBuilder, but for generated EPL */
+/**
+ * Like a StringBuilder, but for generated EPL.
+ *
+ * Only the last line can be appended to, so that's the only line kept in a StringBuilder. The lines before it are
+ * complete, and are never copied once they've been added: a block added with addBlock is stored as a Block that
+ * records how deeply it's indented, rather than as a copy of each of its lines prefixed with a tab, and adding one
+ * EPLOutput to another shares its complete lines rather than copying them. The text of each line is only put together
+ * (with its indentation) when the output is formatted.
+ */
 public class EPLOutput {
 
 	private final static String TODO_COMMENT_PREFIX = "TODO:E2A unsupported";
 	private final static String WARN_COMMENT_PREFIX = "WARN:E2A";
 
 	public EPLOutput() {
-		lines.add("");
 	}
 
 	public EPLOutput(String s) {
-		lines.add(s);
-		this.exprType = new Type.Unknown(s);
+		lastLine.append(s);
+		// Named after s, but only created if it's asked for - see getExprType
+		this.unknownTypeName = s;
+		this.unknownTypePending = true;
+	}
+
+	/** Create an EPLOutput with a copy of the given (non-empty) list of lines */
+	EPLOutput(List<String> lines) {
+		for (int i = 0; i < lines.size() - 1; i++) {
+			completeLines.add(lines.get(i));
+		}
+		completeLineCount = lines.size() - 1;
+		lastLine.append(lines.get(lines.size() - 1));
 	}
 
 	/** Append to the current line */
 	public EPLOutput add(String s) {
 		clearSem();
-		String last = lines.remove(lines.size() - 1);
-		lines.add(last + s);
+		appendToLastLine(s);
 		return this;
 	}
 
@@ -66,26 +82,26 @@ public class EPLOutput {
 
 	/**
 	 * Returns an @EPLOutput instance with all of the comments relevant to current context.
-	 * It also removes all of these comments from @availableComments as they get added to the EPL
+	 * It also takes all of these comments from @availableComments as they get added to the EPL
 	 * @param availableComments comments still available for translation to EPL
 	 * @param stopTokenIndex	stop index for the context. All the comments above this index belong to the context
 	 * @return @{@link EPLOutput} containing all of the comments for the context
 	 */
-	public EPLOutput addRelatedComments(NavigableMap<Integer, String> availableComments, int stopTokenIndex) {
-		for(int key : new TreeSet<Integer>(availableComments.headMap(stopTokenIndex, true).keySet())) {
-			// remove the comment from available comments and add it to the EPL Output
-			this.addLine(availableComments.remove(key));
+	EPLOutput addRelatedComments(EsperComments availableComments, int stopTokenIndex) {
+		while (availableComments.hasNextUpTo(stopTokenIndex)) {
+			this.addLine(availableComments.next());
 		}
 		return this;
 	}
 
-	/** Append to the current line */
+	/** Append to the current line. The first line of e is removed from e. */
 	public EPLOutput add(EPLOutput e) {
 		clearSem();
-		String s1 = this.lines.remove(this.lines.size() - 1);
-		String s2 = e.lines.remove(0);
-		this.lines.add(s1 + s2);
-		this.lines.addAll(e.lines);
+		appendToLastLine(e.removeFirstLine());
+		if (e.lastLine != null) {
+			completeLastLine();
+			addLinesOf(e);
+		}
 		return this;
 	}
 
@@ -118,10 +134,11 @@ public class EPLOutput {
 	/** Start a new line, then append */
 	public EPLOutput addLine(String s) {
 		clearSem();
-		if(lines.get(lines.size() - 1).isEmpty()) {
+		if(lastLine.length() == 0) {
 			add(s);
 		} else {
-			lines.add(s);
+			completeLastLine();
+			lastLine.append(s);
 		}
 		return this;
 	}
@@ -134,9 +151,15 @@ public class EPLOutput {
 	/** Start a new line, then append */
 	public EPLOutput addLine(EPLOutput e) {
 		clearSem();
-		if(lines.get(lines.size() - 1).isEmpty())
-		 	lines.remove(lines.size() - 1);
-		lines.addAll(e.lines);
+		if (e.lastLine == null) {
+			// e has no lines at all (see removeFirstLine), so all this does is remove an empty last line
+			if (lastLine.length() == 0) removeLastLine();
+		} else {
+			if(lastLine.length() > 0) {
+				completeLastLine();
+			}
+			addLinesOf(e);
+		}
 		return this;
 	}
 
@@ -154,13 +177,14 @@ public class EPLOutput {
 		} else {
 			this.add(" {");
 		}
-		for (String s : block.lines) {
-			if (s.isEmpty()) {
-				this.lines.add("");
-			} else {
-				this.lines.add("\t" + s);
-			}
+		completeLastLine();
+		Object blockLines = block.getCompleteLines();
+		if (blockLines != null) {
+			addCompleteLines(Block.indentLines(blockLines, 1), block.completeLineCount);
 		}
+		// (an output with no lines at all - see removeFirstLine - is treated as a single empty line)
+		lastLine = block.lastLine == null ? new StringBuilder() : new StringBuilder(block.lastLine);
+		lastLineDepth = block.lastLineDepth + 1;
 		this.addLine("}");
 		return this;
 	}
@@ -170,29 +194,130 @@ public class EPLOutput {
 		return this.addBlock(block, true);
 	}
 
-	// Returns true if expr occurs at least once in any of the lines.  
-	public boolean contains(String expr){
-		for(int i = 0; i < lines.size(); i++){
-			if(lines.get(i).contains(expr)){
-				return true;
+
+	/** Returns the number of TODO comments in this output - that is, the number of places where something could not be translated */
+	public int countTodos() {
+		return countOccurrences(TODO_COMMENT_PREFIX);
+	}
+
+	/** Returns the number of warning comments in this output - that is, the number of places where the translation may not behave the same as the Esper */
+	public int countWarnings() {
+		return countOccurrences(WARN_COMMENT_PREFIX);
+	}
+
+	/** Returns each line containing a TODO or warning comment, prefixed with its (1-based) line number */
+	public List<String> findDiagnostics() {
+		List<String> ret = new ArrayList<String>();
+		List<String> lines = getLines();
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i);
+			if (line.contains(TODO_COMMENT_PREFIX) || line.contains(WARN_COMMENT_PREFIX)) {
+				ret.add("line " + (i + 1) + ": " + line.trim());
 			}
 		}
-		return false; // No lines contain expr. 
+		return ret;
+	}
+
+	/** Returns the number of TODO comments in some already-formatted EPL */
+	static int countTodos(String formattedEPL) {
+		return countOccurrences(formattedEPL, TODO_COMMENT_PREFIX);
+	}
+
+	/** Returns the number of times expr occurs in all of the lines */
+	private int countOccurrences(String expr) {
+		int count = 0;
+		for (String line : getLines()) {
+			count += countOccurrences(line, expr);
+		}
+		return count;
+	}
+
+	/** Returns the number of times expr occurs in s */
+	private static int countOccurrences(String s, String expr) {
+		int count = 0;
+		for (int i = s.indexOf(expr); i >= 0; i = s.indexOf(expr, i + expr.length())) {
+			count++;
+		}
+		return count;
+	}
+
+	/** Returns a copy of the lines of this output */
+	List<String> getLines() {
+		final List<String> ret = new ArrayList<String>(lineCount());
+		try {
+			forEachLine(new LineVisitor() {
+				@Override
+				public void visit(CharSequence line, int depth) {
+					ret.add(Block.indentLine(line.toString(), depth).toString());
+				}
+			});
+		} catch (IOException e) {
+			throw new AssertionError(e); // nothing above throws
+		}
+		return ret;
 	}
 
 	/** Turn this whole thing into a String */
 	public String formatOutput() {
 		StringBuilder ret = new StringBuilder();
-		for(String s : lines) {
-			ret.append(s);
-			if(lines.size() > 1) ret.append("\n");
+		try {
+			appendTo(ret);
+		} catch (IOException e) {
+			throw new AssertionError(e); // StringBuilder doesn't throw
 		}
 		return ret.toString();
 	}
 
+	/** Writes exactly what formatOutput returns, without building it in memory first */
+	public void writeTo(Writer out) throws IOException {
+		appendTo(out);
+	}
+
+	/** Append every line, with its indentation, to out - each followed by a newline if there's more than one */
+	private void appendTo(final Appendable out) throws IOException {
+		final boolean newLines = lineCount() > 1;
+		forEachLine(new LineVisitor() {
+			@Override
+			public void visit(CharSequence line, int depth) throws IOException {
+				if (line.length() > 0) {
+					for (int i = 0; i < depth; i++) out.append('\t');
+					out.append(line);
+				}
+				if (newLines) out.append('\n');
+			}
+		});
+	}
+
+	/** Called for each line of an output by forEachLine */
+	private interface LineVisitor {
+		/** @param depth number of tabs the line is indented by, unless it's empty */
+		void visit(CharSequence line, int depth) throws IOException;
+	}
+
+	/** Call visitor for every line, in order */
+	private void forEachLine(LineVisitor visitor) throws IOException {
+		for (Object lines : completeLines) {
+			visitLines(visitor, lines, 0);
+		}
+		if (lastLine != null) {
+			visitor.visit(lastLine, lastLineDepth);
+		}
+	}
+
+	/** Call visitor for some complete lines (a String or a Block) indented by depth */
+	private static void visitLines(LineVisitor visitor, Object lines, int depth) throws IOException {
+		if (lines instanceof String) {
+			visitor.visit((String) lines, depth);
+		} else {
+			Block block = (Block) lines;
+			for (Object l : block.lines) {
+				visitLines(visitor, l, depth + block.depth);
+			}
+		}
+	}
+
 	/** Extracts all the text covered by a given rule context */
 	public EPLOutput(ParserRuleContext ctx) {
-		lines.add("");
 		this.add(ctx.getText());
 	}
 
@@ -206,7 +331,12 @@ public class EPLOutput {
 	 * The 'reason' should be appropriate to go in an auto-generated README under a list of language features we don't support.
 	 * */
 	public static EPLOutput cannotTranslate(ParserRuleContext ctx, String reason, boolean blockComments) {
-		String[] lines = getFullText(ctx).split("[\\r\\n]+");
+		return cannotTranslate(getFullText(ctx), reason, blockComments);
+	}
+
+	/** See the main cannotTranslate method - this takes the text of the Esper, for Esper that didn't parse */
+	public static EPLOutput cannotTranslate(String esper, String reason, boolean blockComments) {
+		String[] lines = esper.split("[\\r\\n]+");
 
 		if(lines.length == 1 && lines[0].length() < 60) {
 			return new EPLOutput().addLine((blockComments ? "/**" : "//") + " " +
@@ -243,7 +373,7 @@ public class EPLOutput {
 	}
 
 	public boolean isEmpty(){
-		return lines.isEmpty() || (lines.size() == 1 && lines.get(0).isEmpty());
+		return lastLine == null || (completeLineCount == 0 && lastLine.length() == 0);
 	}
 
 	/**
@@ -251,53 +381,96 @@ public class EPLOutput {
 	 * This is in no way reliable - there is no thorough type checker here, but some simple expressions get given types. So often this will return false, even if it's clearly an expression of that type.
 	 * */
 	public boolean isExprType(String eplName) {
-		if(this.exprType != null && this.exprType.getEPLName().equals(eplName)) {
+		Type exprType = getExprType();
+		if(exprType != null && exprType.getEPLName().equals(eplName)) {
 			return true;
 		}
 		return false;
 	}
 
-	/** Finds the first occurence of a line containing the given expr, and inserts all the lines in linesToInsert immediately before it. */
-	public EPLOutput insertLinesBeforeExpr(EPLOutput linesToInsert, String expr) {
-		for(int i = 0; i < lines.size(); ++i){
-			String line = lines.get(i);
-			if(line.contains(expr)){
-				for(String lineToInsert : linesToInsert.lines){
-					lines.add(i, lineToInsert);
-					++i;
-				}
-				return this;
+	/** The node of the code model that this is the printed form of, or null - see EPLCode */
+	EPLCode getCode() {
+		return code;
+	}
+
+	/** Say that this is the printed form of a node of the code model */
+	EPLOutput setCode(EPLCode code) {
+		this.code = code;
+		return this;
+	}
+
+	/** A copy of this, which shares the lines that can no longer change */
+	EPLOutput copy() {
+		EPLOutput ret = new EPLOutput();
+		if (lastLine == null) {
+			ret.lastLine = null;
+		} else {
+			Object lines = getCompleteLines();
+			if (lines != null) {
+				ret.addCompleteLines(lines, completeLineCount);
 			}
+			ret.lastLine.append(lastLine);
+			ret.lastLineDepth = lastLineDepth;
 		}
-		throw new RuntimeException("EPLOutput.insertLinesBeforeExpr error:\"" +expr+ "\" not found in lines.");
+		ret.exprType = exprType;
+		ret.semCleared = semCleared;
+		ret.unknownTypePending = unknownTypePending;
+		ret.unknownTypeName = unknownTypeName;
+		ret.code = code;
+		return ret;
 	}
 
 	/** Say that this EPLOutput is an expression of type t */
 	public EPLOutput setExprType(Type t) {
 		this.exprType = t;
+		this.semCleared = false;
+		this.unknownTypePending = false;
 		return this;
 	}
 
 	/** Returns the expression of type t for this  EPLOutput */
 	public Type getExprType() {
+		if (this.semCleared) {
+			this.unknownTypeName = firstTokenOf(isEmpty() ? "" : getFirstLine());
+			this.semCleared = false;
+			this.unknownTypePending = true;
+		}
+		if (this.unknownTypePending) {
+			this.exprType = this.unknownTypeName.isEmpty() ? Type.Unknown.NOTHING : new Type.Unknown(this.unknownTypeName);
+			this.unknownTypePending = false;
+		}
 		return this.exprType;
 	}
 
 	/**
-	 * Clear all semantic information for this object - right now, that's just the expression type.
+	 * The first whitespace-separated token of a line followed by "...", or "" if the line is nothing but whitespace.
+	 * This is the same as the first element of line.split("\\s+"), without the regex and the array.
+	 */
+	private static String firstTokenOf(String line) {
+		int end = 0;
+		while (end < line.length() && !isRegexWhitespace(line.charAt(end))) end++;
+		if (end == 0 && line.length() > 0) {
+			// Leading whitespace gives an empty first token, unless the line is all whitespace and there are no tokens
+			int i = 0;
+			while (i < line.length() && isRegexWhitespace(line.charAt(i))) i++;
+			if (i == line.length()) return "";
+		}
+		return line.substring(0, end) + "...";
+	}
+
+	/** The characters that \\s matches */
+	private static boolean isRegexWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	/**
+	 * Clear all semantic information for this object - the expression type, and the code it was printed from.
 	 * Should call this every time it has some text added to it; an EPLOutput that is an expression of a particular type is not likely to remain so after having something appended.
+	 * The Unknown type that replaces it is only created if it's asked for, as this is called for every append.
 	 */
 	private void clearSem() {
-		if(!lines.isEmpty()){
-			String[] firstLineTokens = lines.get(0).split("\\s+");
-			if(firstLineTokens.length > 0){
-				this.exprType = new Type.Unknown(firstLineTokens[0]+"...");
-			} else {
-				this.exprType = new Type.Unknown("");
-			}
-		} else {
-			this.exprType = new Type.Unknown("");
-		}
+		this.semCleared = true;
+		this.code = null;
 	}
 
 	/**
@@ -319,8 +492,189 @@ public class EPLOutput {
 						context.stop.getStopIndex()));
 	}
 
+	/** Append to the last line - which, if it's empty, isn't indented any more */
+	private void appendToLastLine(CharSequence s) {
+		if (lastLine.length() == 0) {
+			lastLineDepth = 0;
+		}
+		lastLine.append(s);
+	}
+
+	/** Make the last line complete, and start a new empty one */
+	private void completeLastLine() {
+		String line = lastLine.toString();
+		addCompleteLines(lastLineDepth == 0 || line.isEmpty() ? line : Block.indentLines(line, lastLineDepth), 1);
+		lastLine = new StringBuilder();
+		lastLineDepth = 0;
+	}
+
+	/** Add some complete lines (a String or Block) after the existing ones */
+	private void addCompleteLines(Object lines, int lineCount) {
+		completeLines.add(lines);
+		completeLineCount += lineCount;
+	}
+
+	/** Add all of the lines of e after the complete lines of this, replacing the last line */
+	private void addLinesOf(EPLOutput e) {
+		Object lines = e.getCompleteLines();
+		if (lines != null) {
+			addCompleteLines(lines, e.completeLineCount);
+		}
+		lastLine = new StringBuilder(e.lastLine);
+		lastLineDepth = e.lastLineDepth;
+	}
+
+	/**
+	 * Returns the complete lines as a single String or Block that can be shared with other outputs, or null if there are
+	 * none. Afterwards, that's all that completeLines holds, so asking again doesn't copy anything.
+	 */
+	private Object getCompleteLines() {
+		if (completeLines.isEmpty()) {
+			return null;
+		}
+		if (completeLines.size() > 1) {
+			Block all = new Block(completeLines.toArray(), 0, completeLineCount);
+			completeLines.clear();
+			completeLines.add(all);
+		}
+		return completeLines.get(0);
+	}
+
+	/** The first line, with its indentation */
+	String getFirstLine() {
+		if (completeLines.isEmpty()) {
+			return Block.indentLine(lastLine.toString(), lastLineDepth).toString();
+		}
+		Object first = completeLines.get(0);
+		int depth = 0;
+		while (first instanceof Block) {
+			depth += ((Block) first).depth;
+			first = ((Block) first).lines[0];
+		}
+		return Block.indentLine((String) first, depth).toString();
+	}
+
+	/** Remove the first line, returning it with its indentation. If that's the only line, this is left with no lines at all. */
+	private String removeFirstLine() {
+		String first = getFirstLine();
+		if (completeLines.isEmpty()) {
+			lastLine = null;
+		} else {
+			Object rest = Block.withoutFirstLine(completeLines.get(0));
+			if (rest == null) {
+				completeLines.remove(0);
+			} else {
+				completeLines.set(0, rest);
+			}
+			completeLineCount--;
+		}
+		return first;
+	}
+
+	/** Remove the last line, so that the last complete line (if there is one) can be appended to again */
+	private void removeLastLine() {
+		if (completeLines.isEmpty()) {
+			lastLine = null;
+			return;
+		}
+		// Rare, so it's simplest to start again with every line
+		List<String> lines = getLines();
+		lines.remove(lines.size() - 1);
+		setLines(lines);
+	}
+
+	/** Replace all of the lines */
+	private void setLines(List<String> lines) {
+		completeLines.clear();
+		completeLines.addAll(lines.subList(0, lines.size() - 1));
+		completeLineCount = lines.size() - 1;
+		lastLine = new StringBuilder(lines.get(lines.size() - 1));
+		lastLineDepth = 0;
+	}
+
+	/** Number of lines, including the last one */
+	int lineCount() {
+		return lastLine == null ? 0 : completeLineCount + 1;
+	}
+
+	/**
+	 * Some complete lines, each indented by depth tabs (except for empty lines). Blocks never change, so they can be
+	 * shared between outputs, and by several blocks that are indented by different amounts.
+	 */
+	private static final class Block {
+		/** Each element is a line (a String) or a nested Block - there's always at least one line */
+		private final Object[] lines;
+		private final int depth;
+		private final int lineCount;
+
+		private Block(Object[] lines, int depth, int lineCount) {
+			this.lines = lines;
+			this.depth = depth;
+			this.lineCount = lineCount;
+		}
+
+		/** Returns lines (a String or Block) indented by depth more tabs */
+		static Object indentLines(Object lines, int depth) {
+			if (lines instanceof Block) {
+				Block block = (Block) lines;
+				return new Block(block.lines, block.depth + depth, block.lineCount);
+			}
+			return new Block(new Object[] { lines }, depth, 1);
+		}
+
+		/** Returns a line with its indentation */
+		static CharSequence indentLine(String line, int depth) {
+			if (depth == 0 || line.isEmpty()) return line;
+			StringBuilder ret = new StringBuilder(depth + line.length());
+			for (int i = 0; i < depth; i++) ret.append('\t');
+			return ret.append(line);
+		}
+
+		/** Returns lines (a String or Block) without their first line, or null if that was the only one */
+		static Object withoutFirstLine(Object lines) {
+			if (lines instanceof String || ((Block) lines).lineCount == 1) {
+				return null;
+			}
+			Block block = (Block) lines;
+			Object restOfFirst = withoutFirstLine(block.lines[0]);
+			Object[] rest;
+			if (restOfFirst == null) {
+				rest = Arrays.copyOfRange(block.lines, 1, block.lines.length);
+			} else {
+				rest = block.lines.clone();
+				rest[0] = restOfFirst;
+			}
+			return new Block(rest, block.depth, block.lineCount - 1);
+		}
+	}
+
 	/** @see setExprType */
-	private Type exprType = new Type.Unknown("");
+	private Type exprType = Type.Unknown.NOTHING;
+
+	/** True if exprType should be an Unknown type named unknownTypeName, which hasn't been created yet */
+	private boolean unknownTypePending = false;
+
+	/** @see unknownTypePending */
+	private String unknownTypeName = "";
+
+	/** @see setCode */
+	private EPLCode code = null;
+
+	/** True if text has been added since the expression type was last set - see clearSem */
+	private boolean semCleared = false;
+
+	/**
+	 * The lines before the last one, which can no longer change. Each element is either a single line (a String) or a
+	 * Block of lines.
+	 */
+	private final List<Object> completeLines = new ArrayList<Object>();
+
+	/** Number of lines in completeLines, counting every line of every Block */
+	private int completeLineCount = 0;
+
+	/** The last line, which can still be appended to - or null if this has no lines at all, see removeFirstLine */
+	private StringBuilder lastLine = new StringBuilder();
 
-	private List<String> lines = new ArrayList<String>();
+	/** Indentation of the last line, which only comes from adding a block whose last line wasn't empty */
+	private int lastLineDepth = 0;
 }
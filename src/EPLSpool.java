@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One section of the translation of a file (such as the contents of onload), built up a statement at a time.
+ *
+ * Adding the translation of each statement to a section gives the same lines as adding the statements one after
+ * another to a single EPLOutput, because each statement's part ends with a non-empty line. A spool can either keep its
+ * lines in memory, or write them to a temporary file so that a very large file can be translated in a fixed heap.
+ */
+abstract class EPLSpool {
+
+	/** A spool that keeps its lines in memory */
+	static EPLSpool inMemory() {
+		return new EPLSpool() {
+			private final List<String> lines = new ArrayList<String>();
+
+			@Override
+			void add(EPLOutput statement) {
+				lines.addAll(statement.getLines());
+			}
+
+			@Override
+			void writeTo(EPLWriter out) throws IOException {
+				out.addLine(lines.isEmpty() ? new EPLOutput() : new EPLOutput(lines));
+			}
+
+			@Override
+			void delete() { }
+		};
+	}
+
+	/** A spool that writes its lines to a temporary file until they are needed */
+	static EPLSpool inTempFile() throws IOException {
+		final Path file = Files.createTempFile("e2a", ".spool");
+		final DataOutputStream spool = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+		return new EPLSpool() {
+			private int lineCount = 0;
+
+			@Override
+			void add(EPLOutput statement) {
+				try {
+					for (String line : statement.getLines()) {
+						byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+						spool.writeInt(bytes.length);
+						spool.write(bytes);
+						lineCount++;
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
+			@Override
+			void writeTo(EPLWriter out) throws IOException {
+				spool.flush();
+				if (lineCount == 0) {
+					out.addLine("");
+					return;
+				}
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+					for (int i = 0; i < lineCount; i++) {
+						byte[] bytes = new byte[in.readInt()];
+						in.readFully(bytes);
+						String line = new String(bytes, StandardCharsets.UTF_8);
+						if (i == 0) {
+							out.addLine(line);
+						} else {
+							out.newLine(line);
+						}
+					}
+				}
+			}
+
+			@Override
+			void delete() throws IOException {
+				spool.close();
+				Files.deleteIfExists(file);
+			}
+		};
+	}
+
+	/** Add the translation of the next statement */
+	abstract void add(EPLOutput statement);
+
+	/** Write the whole section, as if it were an EPLOutput passed to addLine */
+	abstract void writeTo(EPLWriter out) throws IOException;
+
+	/** Free anything held by this spool - it can't be used after this */
+	abstract void delete() throws IOException;
+}
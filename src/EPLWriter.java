@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Like EPLOutput, but writes each line out as soon as it is complete rather than keeping the whole output in memory.
+ * Blocks are written with beginBlock/endBlock rather than by building the block first and then adding it.
+ *
+ * The result is exactly what the equivalent calls on an EPLOutput would give: only the last line can still be added
+ * to, an empty last line is replaced by the next line, and each block is indented by a tab (except for empty lines).
+ */
+abstract class EPLWriter {
+
+	/** A writer that appends each line (without a line terminator) to a list */
+	static EPLWriter to(final List<String> lines) {
+		return new EPLWriter() {
+			@Override
+			protected void writeLine(String line) {
+				lines.add(line);
+			}
+		};
+	}
+
+	/** A writer that writes the lines to out, formatted like EPLOutput.formatOutput */
+	static EPLWriter to(final Writer out) {
+		return new EPLWriter() {
+			@Override
+			protected void writeLine(String line) throws IOException {
+				if (linesWritten > 0) out.write('\n');
+				out.write(line);
+			}
+
+			@Override
+			void close() throws IOException {
+				super.close();
+				if (linesWritten > 1) out.write('\n');
+				out.flush();
+			}
+		};
+	}
+
+	/** Write a complete line, including its indentation */
+	protected abstract void writeLine(String line) throws IOException;
+
+	/** Write the last line. Nothing can be added after this. */
+	void close() throws IOException {
+		flushPending();
+	}
+
+	/** Append to the current line */
+	EPLWriter add(String s) {
+		if (pending.length() == 0) pendingDepth = depth;
+		pending.append(s);
+		return this;
+	}
+
+	/** Append to the current line */
+	EPLWriter add(EPLOutput e) throws IOException {
+		List<String> lines = e.getLines();
+		add(lines.get(0));
+		for (int i = 1; i < lines.size(); i++) {
+			newLine(lines.get(i));
+		}
+		return this;
+	}
+
+	/** Start a new line, then append */
+	EPLWriter addLine(String s) throws IOException {
+		if (pending.length() == 0) {
+			add(s);
+		} else {
+			newLine(s);
+		}
+		return this;
+	}
+
+	/** Start a new line, then append */
+	EPLWriter addLine(EPLOutput e) throws IOException {
+		List<String> lines = e.getLines();
+		if (pending.length() == 0) {
+			pending.append(lines.get(0));
+			pendingDepth = depth;
+		} else {
+			newLine(lines.get(0));
+		}
+		for (int i = 1; i < lines.size(); i++) {
+			newLine(lines.get(i));
+		}
+		return this;
+	}
+
+	/** Start a block, with the opening brace on a new line - the equivalent of EPLOutput.addBlock */
+	EPLWriter beginBlock() throws IOException {
+		addLine("{");
+		depth++;
+		// The contents of the block start as an empty EPLOutput, which is never merged with the brace
+		newLine("");
+		return this;
+	}
+
+	/** End a block started with beginBlock */
+	EPLWriter endBlock() throws IOException {
+		depth--;
+		return addLine("}");
+	}
+
+	/** Finish the current line and start another, even if the current line is empty */
+	void newLine(String s) throws IOException {
+		flushPending();
+		pending.append(s);
+		pendingDepth = depth;
+	}
+
+	private void flushPending() throws IOException {
+		if (pending.length() == 0) {
+			writeLine("");
+		} else {
+			StringBuilder line = new StringBuilder(pendingDepth + pending.length());
+			for (int i = 0; i < pendingDepth; i++) line.append('\t');
+			String s = line.append(pending).toString();
+			todosWritten += EPLOutput.countTodos(s);
+			writeLine(s);
+		}
+		linesWritten++;
+		pending.setLength(0);
+	}
+
+	/** Number of lines written so far */
+	protected int linesWritten = 0;
+
+	/** Number of TODO comments written so far - see EPLOutput.countTodos */
+	int todosWritten = 0;
+
+	/** The current line, which can still be added to */
+	private final StringBuilder pending = new StringBuilder();
+
+	/** Indentation of the current line */
+	private int pendingDepth = 0;
+
+	/** Number of blocks we're in */
+	private int depth = 0;
+}
@@ -26,6 +26,11 @@ esperFile
 	: ';'* moduleDecl? statement* EOF
 	;
 
+// Everything in an esperFile before the statements, for parsing a file a statement at a time
+esperFileHeader
+	: ';'* moduleDecl?
+	;
+
 moduleDecl
 	: 'module'  moduleName = identifier (';'+)
 	;
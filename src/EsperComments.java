@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The comments from an Esper file that haven't been added to the translation yet, in the order they appear in the
+ * file, each with the index in the file that it belongs to (see TranslationEngine.CustomCommonTokenFactory).
+ *
+ * Comments are added by the lexer in order of index, and taken in the same order as each statement is translated, so
+ * this is just an array with a cursor: both adding and taking a comment take constant time. Comments that have been
+ * taken are dropped, so that streaming translation of a huge file only holds the comments it hasn't reached yet.
+ */
+class EsperComments {
+
+	/** Index in the file that each comment belongs to, in ascending order */
+	private int[] indexes = new int[16];
+
+	/** Text of each comment */
+	private String[] texts = new String[16];
+
+	/** Position of the next comment to take */
+	private int next = 0;
+
+	/** Number of used positions, including those already taken */
+	private int size = 0;
+
+	/** Add the next comment of the file, which must not belong to an earlier index than the comment before it */
+	void add(int index, String text) {
+		assert size == 0 || index >= indexes[size - 1] : "Comment at " + index + " added after comment at " + indexes[size - 1];
+		if (size == indexes.length) {
+			if (next > indexes.length / 2) {
+				// More than half have been taken, so make room by dropping them
+				System.arraycopy(indexes, next, indexes, 0, size - next);
+				System.arraycopy(texts, next, texts, 0, size - next);
+				Arrays.fill(texts, size - next, size, null);
+				size -= next;
+				next = 0;
+			} else {
+				indexes = Arrays.copyOf(indexes, size * 2);
+				texts = Arrays.copyOf(texts, size * 2);
+			}
+		}
+		indexes[size] = index;
+		texts[size] = text;
+		size++;
+	}
+
+	/** Returns true if the next comment belongs at or before the given index */
+	boolean hasNextUpTo(int index) {
+		return next < size && indexes[next] <= index;
+	}
+
+	/** Take the next comment */
+	String next() {
+		String text = texts[next];
+		texts[next++] = null;
+		return text;
+	}
+
+	/** Take all of the comments that are left */
+	List<String> takeAll() {
+		List<String> ret = new ArrayList<String>(size - next);
+		while (next < size) {
+			ret.add(next());
+		}
+		return ret;
+	}
+}
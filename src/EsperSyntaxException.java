@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import org.antlr.v4.runtime.Token;
+
+/**
+ * Thrown when the Esper being translated doesn't parse. This is more likely to be a bug in the tool (Esper syntax
+ * that the grammar doesn't cover) than in the original Esper.
+ */
+public class EsperSyntaxException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private final String sourceName;
+	private final int line;
+	private final int charPositionInLine;
+	private final String problem;
+
+	EsperSyntaxException(String sourceName, int line, int charPositionInLine, String problem) {
+		super("Syntax error in " + sourceName + " at line " + line + ":" + charPositionInLine + " - " + problem);
+		this.sourceName = sourceName;
+		this.line = line;
+		this.charPositionInLine = charPositionInLine;
+		this.problem = problem;
+	}
+
+	/**
+	 * For Esper that is nested too deeply to parse or translate, even on a TranslationThread - at the token given.
+	 * On any other thread, overflow is rethrown instead, so that the translation can be retried on a TranslationThread.
+	 */
+	static EsperSyntaxException nestedTooDeeply(Token at, StackOverflowError overflow) {
+		if (!(Thread.currentThread() instanceof TranslationThread)) throw overflow;
+		return new EsperSyntaxException(at.getInputStream().getSourceName(), at.getLine(), at.getCharPositionInLine(), "expression nested too deeply");
+	}
+
+	/** The name of the Esper file (or other source) that contains the error */
+	public String getSourceName() {
+		return sourceName;
+	}
+
+	/** The line of the error, starting from 1 */
+	public int getLine() {
+		return line;
+	}
+
+	/** The column of the error, starting from 0 */
+	public int getCharPositionInLine() {
+		return charPositionInLine;
+	}
+
+	/** What is wrong, as ANTLR describes it - for example "mismatched input 'insert' expecting {'SELECT', 'select'}" */
+	public String getProblem() {
+		return problem;
+	}
+}
@@ -8,7 +8,6 @@
 package com.apama.e2a;
 
 import java.util.TreeMap;
-import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.SortedMap;
@@ -97,37 +96,40 @@ public class EventExpression {
 	 * 
 	 * If the constraint cannot be added to the event expression as it is not in a
 	 * supported format, then false is returned.
+	 *
+	 * The expression is translated once, and the comparison it translates to (see EPLCode.Comparison) is matched
+	 * against field-operator-literal or literal-operator-field.
 	 */
 	public boolean addConstraint(final EsperParser.ExprContext exprCtx, final Scope scope) {
 		if(!isSimpleComparison(exprCtx)){
 			return false;
 		}
-		Scope scopeCopy = scope.variablesCopy();
+		// Only a what-if translation, as if it can't go in the event expression it's translated again for the nested if
+		EPLCode code = new TranslateExpr(scope.whatIf()).translate(exprCtx).getCode();
+		if (!(code instanceof EPLCode.Comparison)) {
+			return false;
+		}
+		EPLCode.Comparison comparisonCode = (EPLCode.Comparison) code;
 		// Check if comparison operator is supported in event expression
-		String eventFieldConstraint = new TranslateExpr(scopeCopy).visit(exprCtx).formatOutput();
-		List<String> split = Arrays.asList(eventFieldConstraint.split("\\s+"));
-		RelationalComparison comparison = RelationalComparison.fromString(split.get(1)); 
+		RelationalComparison comparison = RelationalComparison.fromString(comparisonCode.getOperator());
 		if (RelationalComparison.UNSUPPORTED.equals(comparison)) {
 			return false;
 		}
 		// Check if we are comparing an event field with a literal
-		boolean eventFieldOnLHS = isMemberLookupAndLiteral(exprCtx.expr(0), exprCtx.expr(1), scopeCopy);
-		boolean eventFieldOnRHS = isMemberLookupAndLiteral(exprCtx.expr(1), exprCtx.expr(0), scopeCopy);
-		if (!(eventFieldOnLHS || eventFieldOnRHS)) {
-			return false;
-		}
-		String fieldName;
-		String secondOperand;
-		int indexOfComparison = eventFieldConstraint.indexOf(comparison.operatorEPL);
-		int indexOfFieldName = eventFieldConstraint.indexOf(coassignee + ".") + coassignee.length() + 1;
-		if (eventFieldOnLHS) {
-			fieldName = eventFieldConstraint.substring(indexOfFieldName, indexOfComparison).trim();
-			secondOperand = eventFieldConstraint.substring(indexOfComparison + comparison.operatorEPL.length()).trim();
-		} else /* eventFieldOnRHS */ {
+		EPLCode.Expr field;
+		EPLCode.Expr literal;
+		if (isEventField(comparisonCode.getLhs()) && comparisonCode.getRhs() instanceof EPLCode.Literal) {
+			field = comparisonCode.getLhs();
+			literal = comparisonCode.getRhs();
+		} else if (isEventField(comparisonCode.getRhs()) && comparisonCode.getLhs() instanceof EPLCode.Literal) {
 			comparison = comparison.invert();
-			fieldName = eventFieldConstraint.substring(indexOfFieldName).trim();
-			secondOperand = eventFieldConstraint.substring(0, indexOfComparison).trim();
+			field = comparisonCode.getRhs();
+			literal = comparisonCode.getLhs();
+		} else {
+			return false;
 		}
+		String fieldName = ((EPLCode.FieldPath) field).getField();
+		String secondOperand = ((EPLCode.Literal) literal).getText();
 		// Check if we are adding a constraint to a field that already has a constraint
 		// on it e.g. if specifying a range
 		if (eventFieldConstraints.containsKey(fieldName)) {
@@ -141,14 +143,9 @@ public class EventExpression {
 		return true;
 	}
 
-	/** Returns true if side1 can be reduced to a member lookup on the event and
-	 * side2 is a literal. */
-	private boolean isMemberLookupAndLiteral(final EsperParser.ExprContext side1, final EsperParser.ExprContext side2, final Scope scopeCopy){
-		String side1Translation = new TranslateExpr(scopeCopy).visit(side1).formatOutput().trim();
-		boolean side1HasEventField = side1Translation.startsWith(coassignee + ".")
-			&& !side1Translation.contains("[") 
-			&& (side1Translation.length() - side1Translation.replace(".", "").length() == 1); 
-		return side1HasEventField && side2.literal() != null;
+	/** Returns true if expr is a field of the event */
+	private boolean isEventField(final EPLCode.Expr expr){
+		return expr instanceof EPLCode.FieldPath && ((EPLCode.FieldPath) expr).getVariable().equals(coassignee);
 	}
 
 	/**
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.util.Collection;
+
+/**
+ * Translates calls to some Esper functions - for example, the helper functions of a project, which the tool can't know
+ * about.
+ *
+ * Implementations are found with java.util.ServiceLoader: put the implementation and a
+ * META-INF/services/com.apama.e2a.FunctionTranslator file naming it in a jar, and put the jar on the classpath next to
+ * e2a.jar. A function translated here replaces the tool's own translation of a function with the same name. A single
+ * instance is shared by every translation, so it must be safe to use from several threads at once.
+ */
+public interface FunctionTranslator {
+
+	/** The names of the functions this translates, exactly as they're called in Esper (names are case-sensitive) */
+	Collection<String> getFunctionNames();
+
+	/**
+	 * Translate a call to one of the functions. Anything that can't be translated should be returned from
+	 * EPLOutput.cannotTranslate, so that it gets a TODO comment.
+	 */
+	EPLOutput translate(Call call);
+
+	/** A call of a function, with what is needed to translate it */
+	interface Call {
+		/** The name of the function being called */
+		String getFunctionName();
+
+		/** The parse tree of the call */
+		EsperParser.FunctionCallContext getContext();
+
+		/** The number of arguments */
+		int getArgumentCount();
+
+		/** Translate the argument at index (starting at 0) into an EPL expression */
+		EPLOutput translateArgument(int index);
+
+		/** Say that the translation uses an EPL type, given by its fully-qualified name, so needs a 'using' declaration for it */
+		void addUsing(String fqNameInEPL);
+
+		/** Say that the monitor needs to subscribe to a channel, such as "FindAlarmResponse.SUBSCRIBE_CHANNEL" */
+		void addChannelSubscription(String channel);
+	}
+}
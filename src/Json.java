@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for the line-based protocols of the tool, so that it doesn't need a JSON library on its classpath.
+ * Objects become a LinkedHashMap, arrays an ArrayList, numbers a Double, and true/false/null the obvious Java values.
+ */
+final class Json {
+	private Json() {}
+
+	/** Thrown for anything that isn't valid JSON */
+	static class ParseException extends IllegalArgumentException {
+		ParseException(String message, int position) {
+			super(message + " at character " + (position + 1));
+		}
+	}
+
+	/** Parse a single JSON object, with nothing but whitespace around it */
+	@SuppressWarnings("unchecked")
+	static Map<String, Object> parseObject(String json) {
+		Json.Parser p = new Json.Parser(json);
+		p.skipWhitespace();
+		if (!p.peek('{')) throw new ParseException("Expected a JSON object", p.pos);
+		Object ret = p.value();
+		p.skipWhitespace();
+		if (p.pos != json.length()) throw new ParseException("Unexpected text after the JSON object", p.pos);
+		return (Map<String, Object>) ret;
+	}
+
+	/** Returns s as a JSON string literal, including the quotes */
+	static String quote(String s) {
+		StringBuilder ret = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"': ret.append("\\\""); break;
+				case '\\': ret.append("\\\\"); break;
+				case '\n': ret.append("\\n"); break;
+				case '\r': ret.append("\\r"); break;
+				case '\t': ret.append("\\t"); break;
+				default:
+					if (c < 0x20) {
+						ret.append(String.format("\\u%04x", (int) c));
+					} else {
+						ret.append(c);
+					}
+			}
+		}
+		return ret.append('"').toString();
+	}
+
+	/** Builds a JSON object one member at a time, in order */
+	static class ObjectBuilder {
+		private final StringBuilder json = new StringBuilder("{");
+
+		/** Add a member whose value is already JSON */
+		ObjectBuilder addRaw(String name, String jsonValue) {
+			if (json.length() > 1) json.append(',');
+			json.append(quote(name)).append(':').append(jsonValue);
+			return this;
+		}
+
+		ObjectBuilder add(String name, String value) {
+			return addRaw(name, value == null ? "null" : quote(value));
+		}
+
+		ObjectBuilder add(String name, long value) {
+			return addRaw(name, Long.toString(value));
+		}
+
+		ObjectBuilder add(String name, boolean value) {
+			return addRaw(name, Boolean.toString(value));
+		}
+
+		ObjectBuilder add(String name, List<String> values) {
+			StringBuilder array = new StringBuilder("[");
+			for (String v : values) {
+				if (array.length() > 1) array.append(',');
+				array.append(quote(v));
+			}
+			return addRaw(name, array.append(']').toString());
+		}
+
+		/** Add a member whose value was produced by toJson - for example, a value taken from a request */
+		ObjectBuilder addValue(String name, Object value) {
+			return addRaw(name, toJson(value));
+		}
+
+		@Override
+		public String toString() {
+			return json.toString() + "}";
+		}
+	}
+
+	/** Turn a value as returned by parseObject back into JSON */
+	static String toJson(Object value) {
+		if (value == null) return "null";
+		if (value instanceof String) return quote((String) value);
+		if (value instanceof Double) {
+			double d = (Double) value;
+			return d == Math.rint(d) && !Double.isInfinite(d) ? Long.toString((long) d) : value.toString();
+		}
+		if (value instanceof Map) {
+			ObjectBuilder ret = new ObjectBuilder();
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+				ret.addValue((String) e.getKey(), e.getValue());
+			}
+			return ret.toString();
+		}
+		if (value instanceof List) {
+			StringBuilder ret = new StringBuilder("[");
+			for (Object v : (List<?>) value) {
+				if (ret.length() > 1) ret.append(',');
+				ret.append(toJson(v));
+			}
+			return ret.append(']').toString();
+		}
+		return value.toString();
+	}
+
+	/** Recursive descent parser over a single String */
+	private static class Parser {
+		private final String s;
+		private int pos = 0;
+
+		Parser(String s) {
+			this.s = s;
+		}
+
+		boolean peek(char c) {
+			return pos < s.length() && s.charAt(pos) == c;
+		}
+
+		void skipWhitespace() {
+			while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+		}
+
+		void expect(char c) {
+			skipWhitespace();
+			if (!peek(c)) throw new ParseException("Expected '" + c + "'", pos);
+			pos++;
+		}
+
+		Object value() {
+			skipWhitespace();
+			if (pos >= s.length()) throw new ParseException("Unexpected end of JSON", pos);
+			char c = s.charAt(pos);
+			if (c == '{') return object();
+			if (c == '[') return array();
+			if (c == '"') return string();
+			if (s.startsWith("true", pos)) { pos += 4; return Boolean.TRUE; }
+			if (s.startsWith("false", pos)) { pos += 5; return Boolean.FALSE; }
+			if (s.startsWith("null", pos)) { pos += 4; return null; }
+			return number();
+		}
+
+		Map<String, Object> object() {
+			Map<String, Object> ret = new LinkedHashMap<String, Object>();
+			expect('{');
+			skipWhitespace();
+			if (peek('}')) { pos++; return ret; }
+			while (true) {
+				skipWhitespace();
+				if (!peek('"')) throw new ParseException("Expected a member name", pos);
+				String name = string();
+				expect(':');
+				ret.put(name, value());
+				skipWhitespace();
+				if (!peek(',')) break;
+				pos++;
+			}
+			expect('}');
+			return ret;
+		}
+
+		List<Object> array() {
+			List<Object> ret = new ArrayList<Object>();
+			expect('[');
+			skipWhitespace();
+			if (peek(']')) { pos++; return ret; }
+			while (true) {
+				ret.add(value());
+				skipWhitespace();
+				if (!peek(',')) break;
+				pos++;
+			}
+			expect(']');
+			return ret;
+		}
+
+		String string() {
+			StringBuilder ret = new StringBuilder();
+			pos++; // opening quote
+			while (true) {
+				if (pos >= s.length()) throw new ParseException("Unterminated string", pos);
+				char c = s.charAt(pos++);
+				if (c == '"') return ret.toString();
+				if (c != '\\') {
+					ret.append(c);
+					continue;
+				}
+				if (pos >= s.length()) throw new ParseException("Unterminated string", pos);
+				char e = s.charAt(pos++);
+				switch (e) {
+					case '"': case '\\': case '/': ret.append(e); break;
+					case 'b': ret.append('\b'); break;
+					case 'f': ret.append('\f'); break;
+					case 'n': ret.append('\n'); break;
+					case 'r': ret.append('\r'); break;
+					case 't': ret.append('\t'); break;
+					case 'u':
+						if (pos + 4 > s.length()) throw new ParseException("Bad unicode escape", pos);
+						try {
+							ret.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+						} catch (NumberFormatException nfe) {
+							throw new ParseException("Bad unicode escape", pos);
+						}
+						pos += 4;
+						break;
+					default: throw new ParseException("Bad escape '\\" + e + "'", pos - 1);
+				}
+			}
+		}
+
+		Double number() {
+			int start = pos;
+			while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) pos++;
+			try {
+				return Double.valueOf(s.substring(start, pos));
+			} catch (NumberFormatException e) {
+				throw new ParseException("Unexpected character", start);
+			}
+		}
+	}
+}
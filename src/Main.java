@@ -10,13 +10,19 @@ package com.apama.e2a;
 import java.io.BufferedWriter;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Deque;
 import java.util.ArrayDeque;
 
@@ -28,17 +34,107 @@ public class Main {
 		final Deque<String> argss = new ArrayDeque<>(Arrays.asList(args));
 		String firstArg = argss.poll();
 		boolean ignoreComments = false;
-		if ("--ignoreComments".equalsIgnoreCase(firstArg)) {
-			ignoreComments = true;
+		boolean batch = false;
+		boolean serve = false;
+		boolean streaming = false;
+		boolean recover = false;
+		int port = -1;
+		Path outputDir = null;
+		Path cacheDir = null;
+		Path watchDir = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		while (firstArg != null) {
+			if ("--ignoreComments".equalsIgnoreCase(firstArg)) {
+				ignoreComments = true;
+			} else if ("--batch".equals(firstArg)) {
+				batch = true;
+			} else if ("--recover".equals(firstArg)) {
+				recover = true;
+			} else if ("--streaming".equals(firstArg)) {
+				streaming = true;
+			} else if ("--serve".equals(firstArg)) {
+				serve = true;
+			} else if ("--port".equals(firstArg)) {
+				String value = requireOptionValue(firstArg, argss);
+				try {
+					port = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					port = -1;
+				}
+				if (port < 0 || port > 65535) {
+					System.err.println("Invalid port: " + value);
+					System.exit(1);
+				}
+			} else if ("--outputDir".equals(firstArg)) {
+				outputDir = Paths.get(requireOptionValue(firstArg, argss));
+			} else if ("--watch".equals(firstArg)) {
+				watchDir = Paths.get(requireOptionValue(firstArg, argss));
+			} else if ("--cacheDir".equals(firstArg)) {
+				cacheDir = Paths.get(requireOptionValue(firstArg, argss));
+			} else if ("--threads".equals(firstArg)) {
+				String value = requireOptionValue(firstArg, argss);
+				try {
+					threads = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					threads = 0;
+				}
+				if (threads < 1) {
+					System.err.println("Invalid number of threads: " + value);
+					System.exit(1);
+				}
+			} else {
+				break;
+			}
 			firstArg = argss.poll();
 		}
 
+		// If the function translators on the classpath can't be used, say why once rather than from every TranslationEngine
+		try {
+			TranslateFunction.checkFunctionTranslators();
+		} catch (IllegalStateException e) {
+			System.err.println("Cannot use the function translators on the classpath: " + e.getMessage());
+			System.exit(1);
+		}
+
+		if (serve && firstArg == null) {
+			System.exit(serve(port, threads, recover));
+		}
+		if (watchDir != null && firstArg == null) {
+			if (ignoreComments) {
+				System.out.println("WARNING: All comments from the input Esper files are ignored and will be omitted from the output EPL translations.");
+			}
+			System.exit(watch(watchDir, ignoreComments, recover, outputDir));
+		}
 		if (firstArg == null || "--help".equals(firstArg) || "-h".equals(firstArg)) {
 			printUsage();
 			return;
 		}
+		if (ignoreComments) {
+			System.out.println("WARNING: All comments from the input Esper file are ignored and will be omitted from the output EPL translation.");
+		}
+		if (streaming && cacheDir != null) {
+			System.err.println("--streaming cannot be used with --cacheDir");
+			System.exit(1);
+		}
+		if (batch) {
+			argss.addFirst(firstArg);
+			System.exit(translateBatch(argss, ignoreComments, recover, streaming, outputDir, cacheDir, threads));
+		}
+
 		final String esperFileName = firstArg;
 		String apamaFileName = argss.poll();
+		if (ZipTranslator.isZip(esperFileName)) {
+			if (streaming) {
+				System.err.println("--streaming cannot be used with a zip file");
+				System.exit(1);
+			}
+			if (apamaFileName == null) {
+				// MyEsper.zip -> MyEsper.mon.zip, in the current working directory
+				String zipName = Paths.get(esperFileName).getFileName().toString();
+				apamaFileName = zipName.substring(0, zipName.length() - ".zip".length()) + ".mon.zip";
+			}
+			System.exit(translateZip(Paths.get(esperFileName), Paths.get(apamaFileName), ignoreComments, recover, threads));
+		}
 		if (apamaFileName == null) {
 			final Path esperPath = Paths.get(esperFileName);
 			apamaFileName = esperPath.getFileName().toString();
@@ -46,17 +142,131 @@ public class Main {
 		}
 		// Any extra args are silently ignored
 
-		try {
-			final EPLOutput epl = new E2ATranslator(FileSystems.getDefault().getPath(esperFileName), ignoreComments).translate();
+		int exitCode = 1;
+		try (TranslationEngine engine = new TranslationEngine(ignoreComments, recover, threads)) {
+			final Path esperPath = FileSystems.getDefault().getPath(esperFileName);
 			final Path outPath = FileSystems.getDefault().getPath(apamaFileName);
-			generateOutputEPLFile(outPath.toString(), epl);
-			System.exit(0);
+			if (streaming) {
+				generateOutputEPLFileStreaming(outPath.toString(), engine, esperPath);
+			} else {
+				generateOutputEPLFile(outPath.toString(), engine.translate(esperPath));
+			}
+			exitCode = 0;
+		} catch (final NoSuchFileException nsfe) {
+			System.err.println("File not found: " + nsfe.getMessage());
+		} catch (final EsperSyntaxException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Detected a syntax error in the Esper - this is more likely to be a bug in the tool than the original Esper");
+			System.err.println("Use --recover to translate the rest of the file anyway");
+		} catch (final IOException ioe) {
+			ioe.printStackTrace();
+		}
+		System.exit(exitCode);
+	}
+
+	/** Returns the value following a command line option, exiting with an error if there isn't one */
+	private static String requireOptionValue(String option, Deque<String> args) {
+		String value = args.poll();
+		if (value == null) {
+			System.err.println("Missing value for " + option);
+			System.exit(1);
+		}
+		return value;
+	}
+
+	/**
+	 * Serve translation requests on stdin/stdout, or on a local TCP port if one is given
+	 * @return the exit code for the process
+	 * @see TranslationServer
+	 */
+	private static int serve(int port, int threads, boolean recover) {
+		TranslationServer server = new TranslationServer(threads, recover);
+		try {
+			if (port < 0) {
+				server.serve(System.in, System.out);
+			} else {
+				server.listen(port);
+			}
+			return 0;
+		} catch (final IOException ioe) {
+			ioe.printStackTrace();
+			return 1;
+		}
+	}
+
+	/**
+	 * Translate the Esper files under dir, and then translate them again whenever they change, until interrupted
+	 * @return the exit code for the process
+	 * @see WatchTranslator
+	 */
+	private static int watch(Path dir, boolean ignoreComments, boolean recover, Path outputDir) {
+		if (!Files.isDirectory(dir)) {
+			System.err.println("Not a directory: " + dir);
+			return 1;
+		}
+		try {
+			new WatchTranslator(ignoreComments, recover, dir, outputDir).run(System.out);
+			return 0;
+		} catch (final IOException ioe) {
+			ioe.printStackTrace();
+			return 1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 1;
+		}
+	}
+
+	/**
+	 * Translate all of the Esper files in a zip archive to another zip archive
+	 * @return the exit code for the process
+	 * @see ZipTranslator
+	 */
+	private static int translateZip(Path input, Path output, boolean ignoreComments, boolean recover, int threads) {
+		try {
+			return new ZipTranslator(ignoreComments, recover, threads).run(input, output, System.out) == 0 ? 0 : 1;
 		} catch (final NoSuchFileException nsfe) {
 			System.err.println("File not found: " + nsfe.getMessage());
+			return 1;
 		} catch (final IOException ioe) {
 			ioe.printStackTrace();
+			return 1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 1;
+		}
+	}
+
+	/**
+	 * Translate all of the Esper files named by the inputs (files, directories, globs or @argfiles)
+	 * @return the exit code for the process
+	 */
+	private static int translateBatch(Collection<String> inputs, boolean ignoreComments, boolean recover, boolean streaming, Path outputDir, Path cacheDir, int threads) {
+		BatchTranslator batch;
+		try {
+			batch = new BatchTranslator(ignoreComments, recover, streaming, outputDir, threads, cacheDir == null ? null : new TranslationCache(cacheDir, ignoreComments, recover));
+			for (String input : inputs) {
+				batch.addInput(input);
+			}
+		} catch (final NoSuchFileException nsfe) {
+			System.err.println("File not found: " + nsfe.getMessage());
+			return 1;
+		} catch (final IOException ioe) {
+			ioe.printStackTrace();
+			return 1;
+		}
+		if (batch.size() == 0) {
+			System.err.println("No Esper files found");
+			return 1;
+		}
+		try {
+			return batch.run(System.out) == 0 ? 0 : 1;
+		} catch (final IOException ioe) {
+			ioe.printStackTrace();
+			return 1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 1;
 		}
-		System.exit(1);
 	}
 
 	/**
@@ -65,15 +275,56 @@ public class Main {
 	 * @param epl translated epl code
 	 * @throws IOException
 	 */
-	private static void generateOutputEPLFile(String outPath, EPLOutput epl) throws IOException {
-		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outPath), StandardCharsets.UTF_8))) {
-			writer.append(UNICODE_BOM_CHAR);
-			writer.append(epl.formatOutput());
-		} catch (IOException e) {
-			throw e;
+	static void generateOutputEPLFile(String outPath, EPLOutput epl) throws IOException {
+		try (Writer writer = openOutputEPLFile(outPath)) {
+			epl.writeTo(writer);
+		}
+	}
+
+	/** Write the EPL from a translation to a file, a line at a time */
+	static void generateOutputEPLFile(String outPath, TranslationEngine.Result result) throws IOException {
+		try (Writer writer = openOutputEPLFile(outPath)) {
+			result.writeTo(writer);
 		}
 	}
 
+	/**
+	 * Translate an Esper file a statement at a time, writing the EPL to a file - for Esper files too big to hold in memory
+	 * @return the number of TODOs in the EPL
+	 * @see TranslationEngine.translateStreaming
+	 */
+	static int generateOutputEPLFileStreaming(String outPath, TranslationEngine engine, Path esperFile) throws IOException {
+		// Malformed UTF-8 is replaced rather than rejected, like CharStreams.fromPath does
+		try (Reader reader = new InputStreamReader(Files.newInputStream(esperFile), StandardCharsets.UTF_8)) {
+			try (Writer writer = openOutputEPLFile(outPath)) {
+				return engine.translateStreaming(reader, esperFile.getFileName().toString(), writer);
+			} catch (IOException | RuntimeException e) {
+				// Don't leave half a translation behind
+				Files.deleteIfExists(Paths.get(outPath));
+				throw e;
+			}
+		}
+	}
+
+	/** Write already-formatted EPL code to a file */
+	static void generateOutputEPLFile(String outPath, String epl) throws IOException {
+		try (Writer writer = openOutputEPLFile(outPath)) {
+			writer.append(epl);
+		}
+	}
+
+	/** Create an output file ready for the EPL code to be written to it */
+	private static Writer openOutputEPLFile(String outPath) throws IOException {
+		return openOutputEPL(new FileOutputStream(outPath));
+	}
+
+	/** Wrap a stream ready for the EPL code to be written to it, in the same format as an output file */
+	static Writer openOutputEPL(OutputStream out) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		writer.append(UNICODE_BOM_CHAR);
+		return writer;
+	}
+
 	/**
 	 * Print usage info for the e2a tool.
 	 */
@@ -90,6 +341,16 @@ public class Main {
 			"",
 			"> ./e2a.sh [OPTION] ESPER_FILE.cep [APAMA_EPL_FILE.mon]     (on Linux)",
 			"",
+			"> ./e2a.sh [OPTION] --batch INPUT...                         (many files at once)",
+			"",
+			"> ./e2a.sh --serve [--port PORT] [--threads N] [--recover]   (translation server)",
+			"",
+			"> ./e2a.sh --streaming [OPTION] ESPER_FILE.cep               (very large files)",
+			"",
+			"> ./e2a.sh --watch DIR [OPTION]                              (re-translate on save)",
+			"",
+			"> ./e2a.sh [OPTION] ESPER_FILES.zip [APAMA_EPL_FILES.zip]    (zip archives)",
+			"",
 			"You must run this tool from an Apama command prompt, or have 'java' (from a Java 8 JRE) ",
 			"on your PATH, ",
 			"",
@@ -105,9 +366,55 @@ public class Main {
 			"",
 			"will create a file named `MyEsper.cep.mon`",
 			"",
+			"In batch mode, each INPUT may be an Esper file, a directory (searched recursively",
+			"for `.cep` files), a glob such as `tenants/**/*.cep`, or `@LIST_FILE` naming a",
+			"file that lists further inputs one per line. The files are translated in",
+			"parallel and each output file is written next to its Esper file, or under the",
+			"`--outputDir` directory using the same layout as the inputs. A summary line is",
+			"printed for each file. With `--cacheDir`, translations are cached in that",
+			"directory and files that have not changed since a previous run are not",
+			"translated again.",
+			"",
+			"Given a `.zip` archive, the tool translates each `.cep` entry in it (in",
+			"parallel) and writes the translations to an output zip, without unpacking",
+			"anything to disk. Each output entry has the name of its Esper entry suffixed with",
+			"`.mon`. The output zip defaults to the name of the input with `.zip` replaced by",
+			"`.mon.zip`, in the current working directory.",
+			"",
+			"With `--streaming`, the Esper is read, parsed and translated a statement at a",
+			"time, so that files of hundreds of megabytes can be translated without holding",
+			"them in memory. The output is exactly the same as without `--streaming`.",
+			"",
+			"If the Esper does not parse, the tool reports the line and column of the syntax",
+			"error. With `--recover`, each statement that does not parse is instead skipped",
+			"(up to the next `;` that is not inside brackets) and replaced by a TODO comment,",
+			"and the rest of the file is translated.",
+			"",
+			"With `--watch`, every Esper file under DIR is translated, and then translated",
+			"again each time it is saved, until the tool is stopped with Ctrl+C. Only the",
+			"files that have changed are translated, and a line is printed for each one with",
+			"its number of TODOs and warnings and how long it took.",
+			"",
+			"In server mode, the tool reads translation requests as JSON objects, one per",
+			"line, from stdin (or from clients connecting to PORT on the local machine) and",
+			"writes one JSON response per request. A request names an Esper file with",
+			"`\"path\"` or contains the Esper itself as `\"source\"`, and may also set `\"id\"`",
+			"(copied into the response) and `\"ignoreComments\"`. The response contains the",
+			"`\"epl\"`, the number of `\"todos\"` and `\"warnings\"`, and timings.",
+			"",
 			"Options:",
 			"",
 			"    --ignoreComments  ignore all comments from ESPER_FILE while translating",
+			"    --batch           translate all of the Esper files named by the INPUT arguments",
+			"    --streaming       translate a statement at a time, for files too big to fit in memory",
+			"    --recover         replace statements that do not parse with a TODO, rather than failing",
+			"    --watch DIR       translate the Esper files under DIR whenever they change",
+			"    --outputDir DIR   in batch or watch mode, write the output files under DIR",
+			"    --cacheDir DIR    in batch mode, reuse (and save) translations cached in DIR",
+			"    --threads N       use N threads (default: number of CPU cores) - for a single file, to translate its",
+			"                      statements in parallel",
+			"    --serve           run as a translation server",
+			"    --port PORT       in server mode, listen on this TCP port instead of using stdin/stdout",
 			"    -h, --help        display this help and exit"
 		};
 
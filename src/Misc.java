@@ -28,102 +28,230 @@ final class Misc {
 	private Misc() {
 	}
 
-	private static Map<String, String> initC8yRestInterfacePaths() {
-		final Map<String, String> result = new TreeMap<String, String>();
-		result.put("Alarm", "/alarm/alarms");
-		result.put("ManagedObject", "/inventory/managedObjects");
-		result.put("Event", "/event/events");
-		result.put("Measurement", "/measurement/measurements");
-		result.put("Operation", "/devicecontrol/operations");
-		return Collections.unmodifiableMap(result);
+	/**
+	 * The tables below are each in a holder class of their own, so that they are only built the first time they are
+	 * used rather than whenever Misc is first used.
+	 */
+	private static final class C8yRestInterfacePaths {
+		/** The paths for performing rest requests on artifacts in Cumulocity */
+		static final Map<String, String> PATHS = initC8yRestInterfacePaths();
+
+		private static Map<String, String> initC8yRestInterfacePaths() {
+			final Map<String, String> result = new TreeMap<String, String>();
+			result.put("Alarm", "/alarm/alarms");
+			result.put("ManagedObject", "/inventory/managedObjects");
+			result.put("Event", "/event/events");
+			result.put("Measurement", "/measurement/measurements");
+			result.put("Operation", "/devicecontrol/operations");
+			return Collections.unmodifiableMap(result);
+		}
 	}
 
-	/** The paths for performing rest requests on artifacts in Cumulocity */
-	public final static Map<String, String> C8Y_REST_INTERFACE_PATHS = initC8yRestInterfacePaths();
+	/** The path for performing rest requests on the given type of artifact in Cumulocity (e.g. "Alarm") */
+	static String getC8yRestInterfacePath(String type) {
+		return C8yRestInterfacePaths.PATHS.get(type);
+	}
 
 	private static final String LOSS_OF_PRECISION_WARNING_MESSAGE = "No EPL equivalent for Esper's BigDecimal. The EPL 'decimal' type does decimal floating point, but it is not infinite precision.";
 
-	// This is a map for types in Esper which we are approximately mapping to EPL and with the corresponing warning message it should add while translating.
-	public final static Map<String, String> APPROXIMATE_TYPE_MATCHING;
+	private static final class ApproximateTypeMatching {
+		// This is a map for types in Esper which we are approximately mapping to EPL and with the corresponing warning message it should add while translating.
+		static final Map<String, String> WARNINGS;
 
-	static {
-		final Map<String, String> aMap = new HashMap<String, String>();
-		aMap.put("BigDecimal", LOSS_OF_PRECISION_WARNING_MESSAGE);
-		aMap.put("java.math.BigDecimal", LOSS_OF_PRECISION_WARNING_MESSAGE);
-		APPROXIMATE_TYPE_MATCHING = Collections.unmodifiableMap(aMap);
+		static {
+			final Map<String, String> aMap = new HashMap<String, String>();
+			aMap.put("BigDecimal", LOSS_OF_PRECISION_WARNING_MESSAGE);
+			aMap.put("java.math.BigDecimal", LOSS_OF_PRECISION_WARNING_MESSAGE);
+			WARNINGS = Collections.unmodifiableMap(aMap);
+		}
 	}
 
-	/**
-	 * Make a key for a Map from the given params. E.g. makeKey(SendEmail.class,
-	 * "cc") returns key for translating the "cc" field of an Esper SendEmail event.
-	 * 
-	 * @param esperClass class this key is associated with (which is a recognised
-	 *                   Esper type)
-	 * @param path       path to member variable.
-	 * @return the key
-	 */
-	private static String makeKey(final Class<? extends Type> esperClass, final String path) {
-		return esperClass.getSimpleName() + ":" + path;
+	/** The warning to add when translating the named Esper type, if EPL only has an approximate match for it, or else null */
+	static String getApproximateTypeWarning(String esperTypeName) {
+		return ApproximateTypeMatching.WARNINGS.get(esperTypeName);
+	}
+
+	/** How a known path in C8Y's data model maps to EPL - see commonPathMapping */
+	private static final class PathMapping {
+		/** The path in Esper, such as "c8y_Position.lat" */
+		final String esperPath;
+		/** The path in EPL, or empty if there's no EPL equivalent */
+		final String eplPath;
+		/** True if the object must be cast to float first */
+		final boolean castToFloat;
+		/** True if looking this up in EPL throws if the fragment is not present */
+		final boolean throwsIfAbsent;
+
+		PathMapping(String esperPath, String eplPath, boolean castToFloat, boolean throwsIfAbsent) {
+			this.esperPath = esperPath;
+			this.eplPath = eplPath;
+			this.castToFloat = castToFloat;
+			this.throwsIfAbsent = throwsIfAbsent;
+		}
+
+		PathMapping(String esperPath, String eplPath) {
+			this(esperPath, eplPath, false, false);
+		}
 	}
 
 	/**
-	 * Make mapping for Esper's 'SendEmail' type.
-	 * @return Map of Epser key -> EPL equivalents.
+	 * The known paths of C8Y's data model. The tables are checked in this order, and the first that has the path wins.
 	 */
-	private static Map<String, String> makeSendEmailTranslations() {
-		// Mapping to something more type safe than String would be preferable
-		final Map<String, String> result = new HashMap<String, String>();
-		// Cannot translate 'sender'. It's not actually documented in Esper(!)
-		// but Esper doesn't error with it. Not sure what Esper does with it.
-		// But there's no 'sender' equivalent in EPL so we can't translate it.
-		result.put(makeKey(SendEmail.class, "sender"), "");
-		return Collections.unmodifiableMap(result);
+	private static final class PathMappings {
+		/** Simple direct 1-to-1 mappings of any type, only used for retrieving a value */
+		static final PathMapping[] RETRIEVAL = {
+			new PathMapping("id", "id"),
+			new PathMapping("source", "source"),
+			new PathMapping("name", "name"),
+			new PathMapping("time", "time"),
+			new PathMapping("count", "count"),
+			new PathMapping("status", "status"),
+			new PathMapping("severity", "severity"),
+			new PathMapping("text", "text"),
+			new PathMapping("type", "type"),
+		};
+
+		/** Mappings of any type */
+		static final PathMapping[] C8Y = {
+			new PathMapping("creationTime", "params[\"creationTime\"]", true, false),
+			new PathMapping("lastUpdated", "params[\"lastUpdated\"]", true, false),
+			new PathMapping("id.value", "id"),
+			new PathMapping("source.value", "source"),
+		};
+
+		/** Mappings of a type and its subtypes */
+		static final Map<Class<? extends Type>, PathMapping[]> BY_TYPE = initByType();
+
+		private static Map<Class<? extends Type>, PathMapping[]> initByType() {
+			final Map<Class<? extends Type>, PathMapping[]> result = new HashMap<Class<? extends Type>, PathMapping[]>();
+			result.put(Type.ManagedObject.class, new PathMapping[] {
+				new PathMapping("childAssets", "childAssetIds"),
+				new PathMapping("childDevices", "childDeviceIds"),
+				new PathMapping("assetParents", "assetParentIds"),
+				new PathMapping("deviceParents", "deviceParentIds"),
+				new PathMapping("owner", "params[\"owner\"]", false, true),
+				new PathMapping("c8y_Position.lat", "position[\"lat\"]"),
+				new PathMapping("c8y_Position.lng", "position[\"lng\"]"),
+				new PathMapping("c8y_Position.alt", "position[\"alt\"]"),
+				// ManagedObject also has position["accuracy"] entry in EPL - cannot find any Esper equivalent of this in samples
+			});
+			result.put(Type.Operation.class, new PathMapping[] {
+				new PathMapping("deviceId", "source"),
+				new PathMapping("deviceId.value", "source"),
+			});
+			result.put(SendEmail.class, new PathMapping[] {
+				// Cannot translate 'sender'. It's not actually documented in Esper(!)
+				// but Esper doesn't error with it. Not sure what Esper does with it.
+				// But there's no 'sender' equivalent in EPL so we can't translate it.
+				new PathMapping("sender", ""),
+			});
+			result.put(SendSms.class, new PathMapping[] {
+				new PathMapping("receiver", "address"),
+				new PathMapping("text", "message"),
+				new PathMapping("deviceId", "sourceAssetId"),
+			});
+			return Collections.unmodifiableMap(result);
+		}
 	}
 
 	/**
-	 * Make mapping for Esper's 'SendSms' type.
-	 * @return Map of Epser key -> EPL equivalents.
+	 * A node of a trie of the known paths of a type, with a child for each path segment that can come next. Looking a
+	 * path up walks the segments of the path string in place, so doesn't allocate anything.
 	 */
-	private static Map<String, String> makeSendSmsTranslations() {
-		final Map<String, String> result = new HashMap<String, String>();
-		result.put(makeKey(SendSms.class, "receiver"), "address");
-		result.put(makeKey(SendSms.class, "text"), "message");
-		result.put(makeKey(SendSms.class, "deviceId"), "sourceAssetId");
-		return Collections.unmodifiableMap(result);
-	}
+	private static final class PathNode {
+		private String[] segments = new String[0];
+		private PathNode[] children = new PathNode[0];
+		/** What the path up to here maps to when it's retrieved, or null */
+		private PathMapping forRetrieval;
+		/** What the path up to here maps to when it's assigned to, or null */
+		private PathMapping forAssignment;
+
+		/** The child for path.substring(start, end), or null */
+		PathNode child(String path, int start, int end) {
+			for (int i = 0; i < segments.length; i++) {
+				String segment = segments[i];
+				if (segment.length() == end - start && path.regionMatches(start, segment, 0, segment.length())) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		/** The node for the part of path from start, or null if that isn't a known path (or the start of one) */
+		PathNode find(String path, int start) {
+			PathNode node = this;
+			while (node != null) {
+				int dot = path.indexOf('.', start);
+				if (dot < 0) {
+					return node.child(path, start, path.length());
+				}
+				node = node.child(path, start, dot);
+				start = dot + 1;
+			}
+			return null;
+		}
 
-	private static Map<String, String> initCommonPathMappings() {
-		final Map<String, String> result = new HashMap<String, String>();
-		result.put("id", "id");
-		result.put("source", "source");
-		result.put("name", "name");
-		result.put("time", "time");
-		result.put("count", "count");
-		result.put("status", "status");
-		result.put("severity", "severity");
-		result.put("text", "text");
-		result.put("type", "type");
-		result.put("C8Y:creationTime", "params[\"creationTime\"]");
-		result.put("C8Y:lastUpdated", "params[\"lastUpdated\"]");
-		result.put("C8Y:id.value", "id");
-		result.put("C8Y:source.value", "source");
-		result.put("ManagedObject:childAssets", "childAssetIds");
-		result.put("ManagedObject:childDevices", "childDeviceIds");
-		result.put("ManagedObject:assetParents", "assetParentIds");
-		result.put("ManagedObject:deviceParents", "deviceParentIds");
-		result.put("ManagedObject:owner", "params[\"owner\"]");
-		result.put("ManagedObject:c8y_Position.lat", "position[\"lat\"]");
-		result.put("ManagedObject:c8y_Position.lng", "position[\"lng\"]");
-		result.put("ManagedObject:c8y_Position.alt", "position[\"alt\"]");
-		// ManagedObject also has position["accuracy"] entry in EPL - cannot find any Esper equivalent of this in samples
-		result.put("Operation:deviceId", "source");
-		result.put("Operation:deviceId.value", "source");
-		result.putAll(makeSendEmailTranslations());
-		result.putAll(makeSendSmsTranslations());
-		return Collections.unmodifiableMap(result);
+		/** Add a mapping, unless an earlier one has the same path */
+		void add(PathMapping mapping, boolean retrievalOnly) {
+			PathNode node = this;
+			for (String segment : mapping.esperPath.split("\\.")) {
+				PathNode child = node.child(segment, 0, segment.length());
+				if (child == null) {
+					child = new PathNode();
+					node.segments = Arrays.copyOf(node.segments, node.segments.length + 1);
+					node.children = Arrays.copyOf(node.children, node.children.length + 1);
+					node.segments[node.segments.length - 1] = segment;
+					node.children[node.children.length - 1] = child;
+				}
+				node = child;
+			}
+			if (node.forRetrieval == null) node.forRetrieval = mapping;
+			if (node.forAssignment == null && !retrievalOnly) node.forAssignment = mapping;
+		}
+
+		/** What the path up to here maps to, or null */
+		PathMapping getMapping(boolean isRetrieval) {
+			return isRetrieval ? forRetrieval : forAssignment;
+		}
 	}
 
-	private final static Map<String, String> COMMON_PATH_MAPPINGS = initCommonPathMappings();
+	/** The trie of the known paths of each type, built the first time a path of that type is mapped */
+	private static final ClassValue<PathNode> PATH_TRIES = new ClassValue<PathNode>() {
+		@Override
+		protected PathNode computeValue(Class<?> type) {
+			PathNode root = new PathNode();
+			for (PathMapping mapping : PathMappings.RETRIEVAL) {
+				root.add(mapping, true);
+			}
+			for (PathMapping mapping : PathMappings.C8Y) {
+				root.add(mapping, false);
+			}
+			for (Map.Entry<Class<? extends Type>, PathMapping[]> byType : PathMappings.BY_TYPE.entrySet()) {
+				if (byType.getKey().isAssignableFrom(type)) {
+					for (PathMapping mapping : byType.getValue()) {
+						root.add(mapping, false);
+					}
+				}
+			}
+			return root;
+		}
+	};
+
+	/** The first segments of a path that just say which object the rest of the path is on, so can be left out */
+	private static final String[] OBJECT_PREFIXES = { "measurement", "managedObject", "alarm", "operation", "#event" };
+
+	/** The static enums of C8Y, whose values are strings in EPL */
+	private static final String[] STATIC_ENUMS = { "CumulocitySeverities", "CumulocityAlarmStatuses", "OperationStatus" };
+
+	/** Returns true if path starts with one of segments, followed by the end of the path or a '.' */
+	private static boolean startsWithSegment(String path, String[] segments) {
+		for (String segment : segments) {
+			if (path.startsWith(segment) && (path.length() == segment.length() || path.charAt(segment.length()) == '.')) {
+				return true;
+			}
+		}
+		return false;
+	}
 
 	/**
 	 * Given a path expression (foo.bar.baz) that matches a known path in C8Y's data
@@ -150,18 +278,15 @@ final class Misc {
 			return null;
 		}
 
-		String[] pathArray = path.split("\\.");
-
 		if(object == null) {
 			// Mapping static enums - see https://cumulocity.com/guides/event-language/data-model/#additional-data-model 
-			switch(pathArray[0]) {
-				case "CumulocitySeverities":
-				case "CumulocityAlarmStatuses":
-				case "OperationStatus":
-					return new EPLOutput().add("\"").add(pathArray[1]).add("\""); // FIXME: Possible index OOB?
-				default:
-					return null;
+			int dot = path.indexOf('.');
+			if (dot < 0 || !startsWithSegment(path, STATIC_ENUMS)) {
+				return null;
 			}
+			int end = path.indexOf('.', dot + 1);
+			String value = path.substring(dot + 1, end < 0 ? path.length() : end);
+			return value.isEmpty() ? null : new EPLCode.Literal("\"" + value + "\"").toEPLOutput();
 		}
 
 		if (object.getExprType() == null) {
@@ -179,79 +304,46 @@ final class Misc {
 		}
 
 		// From here on, we know that we are mapping path of a known type
-		switch (pathArray[0]) {
-			case "measurement":
-			case "managedObject":
-			case "alarm":
-			case "operation":
-			case "#event":
-				path = path.replaceFirst(pathArray[0], "");
-				if(!path.isEmpty() && path.charAt(0) == '.') 
-					path = path.replaceFirst(".", "");
-				if(path.isEmpty()) {
-					return object;
-				}
-				break;
-			default:
-				break;
+		int start = 0;
+		if (startsWithSegment(path, OBJECT_PREFIXES)) {
+			start = path.indexOf('.') + 1;
+			if (start == 0 || start == path.length()) {
+				return object;
+			}
 		}
 
-		// Simple direct 1-to-1 mappings
-		if(COMMON_PATH_MAPPINGS.containsKey(path) && isRetrieval){
-			 return object.add(".").add(COMMON_PATH_MAPPINGS.get(path));
+		PathNode node = PATH_TRIES.get(object.getExprType().getClass()).find(path, start);
+		PathMapping mapping = node == null ? null : node.getMapping(isRetrieval);
+		if (mapping == null) {
+			// not a known mapping
+			return null;
 		}
-
-		// Path mappings that applies to keys with C8Y key prefix
-		if(COMMON_PATH_MAPPINGS.containsKey("C8Y:"+path)){
-			if(path.equals("lastUpdated") || path.equals("creationTime")){ // Special case - needs cast
-				object = new EPLOutput("<float> ").add(object);
-			}
-			return object.add(".").add(COMMON_PATH_MAPPINGS.get("C8Y:"+path));
+		if (mapping.eplPath.isEmpty()) {
+			return EPLOutput.cannotTranslate("Cannot translate \"" + object.getExprType().getClass().getSimpleName() + ":" + mapping.esperPath + "\"");
 		}
-		boolean isManagedObjectType = object.getExprType() instanceof Type.ManagedObject;
-		if(isManagedObjectType && COMMON_PATH_MAPPINGS.containsKey("ManagedObject:"+path)){
-			EPLOutput eplOut = object.add(".").add(COMMON_PATH_MAPPINGS.get("ManagedObject:"+path)); 
-			if(isRetrieval && path.contains("owner")){
-				eplOut.addWarning("This throws if this fragment is not present");
-			}
-			return eplOut;
+		if (mapping.castToFloat) {
+			object = new EPLOutput("<float> ").add(object);
 		}
-
-		boolean isOperationType = object.getExprType() instanceof Type.Operation;
-		if(isOperationType && COMMON_PATH_MAPPINGS.containsKey("Operation:"+path)){
-			return object.add(".").add(COMMON_PATH_MAPPINGS.get("Operation:"+path)); 
-		}	
-
-		final String key = makeKey(object.getExprType().getClass(), path);
-		final String translation = COMMON_PATH_MAPPINGS.get(key);
-		if (translation != null) {
-			if (translation.isEmpty()) {
-				return EPLOutput.cannotTranslate("Cannot translate \"" + key + "\"");
-			} else {
-				return object.add(".").add(translation);
-			}
+		EPLOutput eplOut = object.add(".").add(mapping.eplPath);
+		if (isRetrieval && mapping.throwsIfAbsent) {
+			eplOut.addWarning("This throws if this fragment is not present");
 		}
-
-		// not a known mapping
-		return null;
+		return eplOut;
 	}
 
 	/**
-	 * If eplout is an integer, simply add ".0" to the end. If it is already a valid
+	 * If value is an integer literal, simply add ".0" to the end. If it is already a valid
 	 * float, output it unchanged.
 	 *
 	 * If it's not a numerical literal, we don't necessarily know what type it is,
 	 * so just leave it unmolested and hope it's right.
 	 */
 	public static EPLOutput tryCastToFloat(final EPLOutput value) {
-		try {
-			Double.parseDouble(value.formatOutput()); // throws if value cannot be parsed to a number
-			if (!value.contains(".")) {
-				return value.add(".0"); // convert integer value to a float
-			}
-		} catch (NumberFormatException nfe) {
-			// Do nothing - if there a type error in the resulting EPL then PS can deal with this.
+		EPLCode code = value.getCode();
+		if (code instanceof EPLCode.NumberLiteral && ((EPLCode.NumberLiteral) code).isDecimalInteger()) {
+			return value.add(".0"); // convert integer value to a float
 		}
+		// Do nothing - if there a type error in the resulting EPL then PS can deal with this.
 		return value;
 	}
 }
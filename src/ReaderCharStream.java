@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+/**
+ * A CharStream that reads its input as it's needed, and only keeps the characters that haven't been discarded.
+ *
+ * Unlike ANTLR's UnbufferedCharStream, the text of anything since the last call to discardBefore is still available
+ * from getText, so the translation of a statement can use the original text of the statement (see
+ * EPLOutput.getFullText) while the rest of the file is never held in memory.
+ */
+class ReaderCharStream implements CharStream {
+
+	private final Reader input;
+	private final String name;
+
+	/** The characters (as code points) that have been read and not discarded */
+	private int[] data = new int[4096];
+
+	/** Number of valid code points in data */
+	private int n = 0;
+
+	/** Position in data of the next character to consume */
+	private int p = 0;
+
+	/** Index in the input of data[0] */
+	private int bufferStartIndex = 0;
+
+	/** True once the input has run out */
+	private boolean eof = false;
+
+	/** A high surrogate read at the end of one read, waiting for its low surrogate from the next */
+	private int pendingHighSurrogate = -1;
+
+	private final char[] readBuffer = new char[4096];
+
+	ReaderCharStream(Reader input, String name) {
+		this.input = input;
+		this.name = name;
+	}
+
+	/** Forget everything before index, which must not be after the current position */
+	void discardBefore(int index) {
+		int drop = index - bufferStartIndex;
+		if (drop < 0 || drop > p) {
+			throw new IllegalArgumentException("Cannot discard before " + index + " at position " + index());
+		}
+		System.arraycopy(data, drop, data, 0, n - drop);
+		n -= drop;
+		p -= drop;
+		bufferStartIndex = index;
+	}
+
+	@Override
+	public void consume() {
+		if (LA(1) == IntStream.EOF) {
+			throw new IllegalStateException("cannot consume EOF");
+		}
+		p++;
+	}
+
+	@Override
+	public int LA(int i) {
+		if (i == -1) {
+			return p > 0 ? data[p - 1] : 0;
+		}
+		if (i <= 0) {
+			return 0; // undefined
+		}
+		int index = p + i - 1;
+		fill(index + 1);
+		return index < n ? data[index] : IntStream.EOF;
+	}
+
+	/** Nothing before the last discardBefore is ever needed again, so marking is a no-op */
+	@Override
+	public int mark() {
+		return -1;
+	}
+
+	@Override
+	public void release(int marker) { }
+
+	@Override
+	public int index() {
+		return bufferStartIndex + p;
+	}
+
+	@Override
+	public void seek(int index) {
+		if (index < bufferStartIndex) {
+			throw new IllegalArgumentException("Cannot seek to " + index + ", which has been discarded");
+		}
+		fill(index - bufferStartIndex);
+		p = Math.min(index - bufferStartIndex, n);
+	}
+
+	@Override
+	public int size() {
+		throw new UnsupportedOperationException("The size of a ReaderCharStream isn't known until it has been read");
+	}
+
+	@Override
+	public String getSourceName() {
+		return name == null || name.isEmpty() ? UNKNOWN_SOURCE_NAME : name;
+	}
+
+	@Override
+	public String getText(Interval interval) {
+		int start = interval.a - bufferStartIndex;
+		int stop = interval.b - bufferStartIndex;
+		if (start < 0 || stop >= n) {
+			throw new UnsupportedOperationException("Interval " + interval + " is not in the buffered text, which starts at " + bufferStartIndex);
+		}
+		StringBuilder ret = new StringBuilder(stop - start + 1);
+		for (int i = start; i <= stop; i++) {
+			ret.appendCodePoint(data[i]);
+		}
+		return ret.toString();
+	}
+
+	/** Read until there are at least count code points in data, or the input runs out */
+	private void fill(int count) {
+		try {
+			while (n < count && !eof) {
+				int read = input.read(readBuffer);
+				if (read < 0) {
+					eof = true;
+					if (pendingHighSurrogate >= 0) append(pendingHighSurrogate);
+					break;
+				}
+				for (int i = 0; i < read; i++) {
+					char c = readBuffer[i];
+					if (pendingHighSurrogate >= 0) {
+						if (Character.isLowSurrogate(c)) {
+							append(Character.toCodePoint((char) pendingHighSurrogate, c));
+							pendingHighSurrogate = -1;
+							continue;
+						}
+						append(pendingHighSurrogate);
+						pendingHighSurrogate = -1;
+					}
+					if (Character.isHighSurrogate(c)) {
+						pendingHighSurrogate = c;
+					} else {
+						append(c);
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void append(int codePoint) {
+		if (n == data.length) {
+			data = Arrays.copyOf(data, data.length * 2);
+		}
+		data[n++] = codePoint;
+	}
+}
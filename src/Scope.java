@@ -7,19 +7,52 @@
  */
 package com.apama.e2a;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.Collections;
 
-/** Object describing the surrounding lexical scope of something in the syntax tree that we're currently visiting */
+import org.antlr.v4.runtime.ParserRuleContext;
+
+/**
+ * Object describing the surrounding lexical scope of something in the syntax tree that we're currently visiting.
+ *
+ * Scopes form a chain: a nested scope points at the scope it's nested in and only holds the local variables added to
+ * it, so nesting takes constant time whatever is in scope, and looking a variable up walks the (short) chain.
+ */
 class Scope {
 	public Scope(TranslateEsperFile file) {
 		this.file = file;
+		this.parent = null;
+		this.globalVariables = new TreeMap<String, Type>();
+	}
+
+	/** A scope nested beneath parent, sharing everything with it apart from new local variables */
+	private Scope(Scope parent) {
+		this.file = parent.file;
+		this.parent = parent;
+		this.globalVariables = parent.globalVariables;
+		this.effects = parent.effects;
+		this.select = parent.select;
+		this.whatIf = parent.whatIf;
+		this.memo = parent.memo;
 	}
 
 	/** Add a local variable (like a coassignment) into scope */
 	public void addVariableToLocalScope(String name, Type type) {
+		if (this.variables == null) {
+			this.variables = new HashMap<String, Type>();
+		}
 		this.variables.put(name, type);
+		forgetTranslations();
+	}
+
+	/** Create a scope for translating a single top-level statement, whose effects on the rest of the file are recorded in effects */
+	public Scope forStatement(StatementEffects effects) {
+		Scope ret = this.nested();
+		ret.effects = effects;
+		ret.memo = new TranslationMemo();
+		return ret;
 	}
 
 	/** Create a scope nested beneath this one, for when we enter a select */
@@ -31,33 +64,52 @@ class Scope {
 
 	/** Create a nested scope - has access to all variables in the parent scope, but any new local variables are local to this one. */
 	public Scope nested() {
-		return this.clone();
+		return new Scope(this);
+	}
+
+	/**
+	 * Create a nested scope for translating something just to see what it translates to. It sees everything that this
+	 * scope does, but any effects of the translation on the statement, select or rest of the file are discarded.
+	 */
+	public Scope whatIf() {
+		Scope ret = this.nested();
+		ret.effects = new StatementEffects();
+		ret.whatIf = true;
+		return ret;
 	}
 
 	/** All variables in scope, names and types */
 	public Map<String, Type> getVars() {
-		TreeMap<String, Type> mergedVariables = new TreeMap<String,Type>(this.variables);
+		TreeMap<String, Type> mergedVariables = new TreeMap<String,Type>();
+		addLocalVarsTo(mergedVariables);
 		// Add the global scope vars
-		for (Map.Entry<String, Type> entry : globalVariables.entrySet()) {
-			mergedVariables.put(entry.getKey(), entry.getValue());
-		}
+		mergedVariables.putAll(globalVariables);
 		return Collections.unmodifiableMap(mergedVariables);
 	}
 
+	/** Add the local variables of this scope and the scopes it's nested in to vars, the innermost taking precedence */
+	private void addLocalVarsTo(Map<String, Type> vars) {
+		if (parent != null) {
+			parent.addLocalVarsTo(vars);
+		}
+		if (variables != null) {
+			vars.putAll(variables);
+		}
+	}
+
 	/**
 	 * Returns the Type of the variable in the scope with the given variableName. If
 	 * the variable with given name does not exist in scope, then null is returned.
 	 */
 	public Type getVar(String variableName){
-		// First check in the local scope
-		if (this.variables.containsKey(variableName)) {
-			return this.variables.get(variableName);
+		// First check in the local scopes, innermost first
+		for (Scope s = this; s != null; s = s.parent) {
+			if (s.variables != null && s.variables.containsKey(variableName)) {
+				return s.variables.get(variableName);
+			}
 		}
 		// If not found in the local scope, check in global scope
-		if (globalVariables.containsKey(variableName)) {
-			return globalVariables.get(variableName);
-		}
-		return null;
+		return globalVariables.get(variableName);
 	}
 
 	/** Translation visitor for the overall file we're in */
@@ -65,9 +117,48 @@ class Scope {
 		return this.file;
 	}
 
+	/** Called by translation visitors to say what types they're using, so we can turn it into a bunch of (de-duplicated) 'using' declarations if necessary */
+	public void addUsing(Type t) {
+		if(!t.getFqEPLName().equals(t.getEPLName())) {
+			addUsing(t.getFqEPLName());
+		}
+	}
+
+	/** Like the other addUsing, but used for an EPL type that didn't come directly from an equivalent Esper type. For example, a utility type like 'AnyExtractor'. */
+	public void addUsing(String fqNameInEPL) {
+		effect();
+		effects.addUsing(fqNameInEPL);
+	}
+
+	/** Add to the list of monitor subscriptions */
+	public void addChannelSubscription(Type t) {
+		if(t instanceof InputType){
+			addChannelSubscription(t.getSubscribeChannel());
+		}
+	}
+
+	/** Add to the list of monitor subscriptions */
+	public void addChannelSubscription(String s) {
+		effect();
+		effects.addChannelSubscription(s);
+	}
+
+	/** Adds an action to the bottom of the monitor */
+	public void addEPLUtilityAction(UtilityAction action) {
+		effect();
+		effects.addEPLUtilityAction(action);
+	}
+
+	/** Generates a file-unique variable name, named after root */
+	public String uniqueVarName(String root) {
+		effect();
+		return effects.uniqueVarName(root);
+	}
+
 	/** Add a global variable/constant. Once added, this variable will be available to all scope instances for that esper file. */
 	public void addVariableToGlobalScope(String name, Type type) {
 		globalVariables.put(name, type);
+		forgetTranslations();
 	}
 
 	/** Translation visitor for the select statement we're working inside - only works if we're actually in one! */
@@ -76,44 +167,84 @@ class Scope {
 		return select;
 	}
 
-	protected Scope clone() {
-		Scope ret = new Scope(this.file);
-		ret.select = this.select;
-		ret.variables = new TreeMap<String,Type>(this.variables);
-		ret.globalVariables = this.globalVariables;
-		return ret;
+	/**
+	 * Add an asynchronous call that the select we're working inside must make before the code that uses its result.
+	 * @see TranslateUnwindowedSelectClause.asyncCall
+	 */
+	public void asyncCall(EPLOutput epl) {
+		effect();
+		if (!whatIf) {
+			getSelect().asyncCall(epl);
+		}
 	}
 
 	/**
-	 * Creates a new Scope object, where the 'variables' and 'globalVariables'
-	 * fields have been deep-copied, and the 'select' and 'file' fields are new
-	 * TranslateUnwindowedSelectClause and TranslateEsperFile default-initialized
-	 * objects.
-	 * 
-	 * This is intended for situations where we require access to the variable
-	 * information contained in the scope, but we do not wish to modify the scope
-	 * in any way.
+	 * The translation of node made earlier in this statement in a scope that sees the same things as this one, or null
+	 * if there isn't one - see TranslationMemo.
 	 */
-	public Scope variablesCopy() {
-		Scope ret = new Scope(new TranslateEsperFile(this.file.getDefaultMonitorName()));
-		ret.variables = new TreeMap<String, Type>(this.variables);
-		ret.globalVariables = new TreeMap<String, Type>(this.globalVariables);
-		ret.select = new TranslateUnwindowedSelectClause(ret);
+	public EPLOutput getMemoisedTranslation(ParserRuleContext node) {
+		return memo == null ? null : memo.get(node, translationView());
+	}
+
+	/** Remember the translation of node, which had no effects - that is, effectCount didn't change while translating it */
+	public void memoiseTranslation(ParserRuleContext node, EPLOutput epl) {
+		if (memo != null) {
+			memo.put(node, translationView(), epl);
+		}
+	}
+
+	/** The number of effects that translations have had on the statement so far, including what-if translations */
+	public int effectCount() {
+		return memo == null ? 0 : memo.getEffectCount();
+	}
+
+	/** @see effectCount */
+	private void effect() {
+		if (memo != null) {
+			memo.effect();
+		}
+	}
+
+	/** Called when something changes what a node would translate to */
+	private void forgetTranslations() {
+		if (memo != null) {
+			memo.clear();
+		}
+	}
+
+	/** The outermost scope that translates everything the same as this one - nested scopes that add no variables and are in the same select are no different */
+	private Scope translationView() {
+		Scope ret = this;
+		while (ret.variables == null && ret.parent != null && ret.parent.select == ret.select) {
+			ret = ret.parent;
+		}
 		return ret;
 	}
 
-	/** @see addVariableToLocalScope */
-	private Map<String, Type> variables = new TreeMap<String, Type>();
+	/** The scope this one is nested in, or null for the scope of the whole file */
+	private final Scope parent;
+
+	/** Variables added to this scope itself (not the ones it's nested in), or null if there aren't any - @see addVariableToLocalScope */
+	private Map<String, Type> variables;
 
-	/** @see addVariableToGlobalScope */
-	private Map<String, Type> globalVariables  = new TreeMap<String, Type>();
+	/** Shared by every scope of the file - @see addVariableToGlobalScope */
+	private final Map<String, Type> globalVariables;
 
 	/** @see getFile */
-	private TranslateEsperFile file;
+	private final TranslateEsperFile file;
+
+	/** @see forStatement */
+	private StatementEffects effects;
 
 	/** @see inSelect */
 	private TranslateUnwindowedSelectClause select;
 
+	/** @see whatIf */
+	private boolean whatIf = false;
+
+	/** Translations made so far in the statement, shared by all of its scopes - @see getMemoisedTranslation */
+	private TranslationMemo memo;
+
 	/** Default name of the EPL local variable that we generate to receive the incoming event for the statement - that is, a coassignment for an event expression */
 	public static final String COASSIGNEE_NAME = "output";
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.misc.Interval;
+
+/**
+ * Bounded, least-recently-used cache of statement translations, shared by every file (and thread) using the same
+ * TranslationEngine. Files generated from the same template contain many identical statements, and this lets each
+ * distinct one be translated once.
+ *
+ * Only statements that don't change the scope (select and 'on ... set' statements) are cached. The key is the exact
+ * source text of the statement plus a description of everything in the file's scope that the translation can depend
+ * on - the declared schemas and variables - so a hit is guaranteed to give the same EPL as translating it again.
+ */
+class StatementCache {
+
+	/** Number of statements cached by default */
+	static final int DEFAULT_MAX_ENTRIES = 4096;
+
+	private final Map<String, Translation> entries;
+
+	StatementCache(final int maxEntries) {
+		this.entries = new LinkedHashMap<String, Translation>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Translation> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/** The cache key for a statement, given a description of the scope it's translated in */
+	static String keyFor(ParserRuleContext statement, String scopeFingerprint) {
+		String text = statement.start.getInputStream().getText(Interval.of(statement.start.getStartIndex(), statement.stop.getStopIndex()));
+		return scopeFingerprint + "\u0000" + text;
+	}
+
+	/** Returns the cached translation, or null if there isn't one */
+	Translation get(String key) {
+		Translation ret;
+		synchronized (entries) {
+			ret = entries.get(key);
+		}
+		(ret == null ? misses : hits).incrementAndGet();
+		return ret;
+	}
+
+	void put(String key, Translation translation) {
+		synchronized (entries) {
+			entries.put(key, translation);
+		}
+	}
+
+	/** Number of statements that have been found in the cache */
+	long getHits() {
+		return hits.get();
+	}
+
+	/** Number of statements that were looked up but not found in the cache */
+	long getMisses() {
+		return misses.get();
+	}
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/** A translated statement, with placeholders for its unique names, and its effects on the rest of the file */
+	static class Translation {
+		/** Lines of EPL, or null if the statement produced none */
+		private final List<String> lines;
+		private final StatementEffects effects;
+
+		Translation(EPLOutput epl, StatementEffects effects) {
+			this.lines = epl == null ? null : Collections.unmodifiableList(epl.getLines());
+			this.effects = effects;
+		}
+
+		/** Apply the effects of the statement to the file, and return its EPL for that file (or null if it has none) */
+		EPLOutput applyTo(TranslateEsperFile file) {
+			EPLOutput epl = lines == null ? new EPLOutput() : new EPLOutput(lines);
+			epl = effects.applyTo(file, epl);
+			return lines == null ? null : epl;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The effects that translating a single statement has on the rest of the file: the usings, channel subscriptions and
+ * utility actions it needs, and the file-unique variable names it uses.
+ *
+ * These are recorded while the statement is translated and applied to the file afterwards, so that the translation of
+ * a statement doesn't depend on the statements before it and can be reused (see StatementCache). Because the unique
+ * names depend on the rest of the file, the translation contains placeholders for them, which are replaced with the
+ * real names when the effects are applied.
+ */
+class StatementEffects {
+
+	/** @see addUsing */
+	private final Set<String> usings = new LinkedHashSet<String>();
+
+	/** @see addChannelSubscription */
+	private final Set<String> channelSubscriptions = new LinkedHashSet<String>();
+
+	/** @see addEPLUtilityAction */
+	private final List<UtilityAction> utilityActions = new ArrayList<UtilityAction>();
+
+	/** Roots of the names given out by uniqueVarName, in order */
+	private final List<String> nameRoots = new ArrayList<String>();
+
+	/** @see TranslateEsperFile.addUsing */
+	void addUsing(String fqNameInEPL) {
+		usings.add(fqNameInEPL);
+	}
+
+	/** @see TranslateEsperFile.addChannelSubscription */
+	void addChannelSubscription(String channel) {
+		channelSubscriptions.add(channel);
+	}
+
+	/** @see TranslateEsperFile.addEPLUtilityAction */
+	void addEPLUtilityAction(UtilityAction action) {
+		utilityActions.add(action);
+	}
+
+	/** Returns a placeholder for a file-unique variable name, named after root - see applyTo */
+	String uniqueVarName(String root) {
+		nameRoots.add(root);
+		return PLACEHOLDER_START + Integer.toString(nameRoots.size() - 1) + PLACEHOLDER_END;
+	}
+
+	/**
+	 * Apply these effects to the file, in the same order as if the statement had been translated directly against it.
+	 * @param epl the translation of the statement, which is not modified
+	 * @return the translation with the placeholders for unique names replaced with real names from the file
+	 */
+	EPLOutput applyTo(TranslateEsperFile file, EPLOutput epl) {
+		for (String using : usings) {
+			file.addUsing(using);
+		}
+		for (String channel : channelSubscriptions) {
+			file.addChannelSubscription(channel);
+		}
+		for (UtilityAction action : utilityActions) {
+			file.addEPLUtilityAction(action);
+		}
+		if (nameRoots.isEmpty()) {
+			return new EPLOutput(epl.getLines());
+		}
+
+		String[] names = new String[nameRoots.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = file.uniqueVarName(nameRoots.get(i));
+		}
+		List<String> lines = new ArrayList<String>();
+		for (String line : epl.getLines()) {
+			lines.add(replacePlaceholders(line, names));
+		}
+		return new EPLOutput(lines);
+	}
+
+	/** Replace each placeholder in line with the corresponding name */
+	private static String replacePlaceholders(String line, String[] names) {
+		int start = line.indexOf(PLACEHOLDER_START);
+		if (start < 0) return line;
+		StringBuilder ret = new StringBuilder(line.length());
+		int copied = 0;
+		while (start >= 0) {
+			int end = line.indexOf(PLACEHOLDER_END, start);
+			ret.append(line, copied, start).append(names[Integer.parseInt(line.substring(start + 1, end))]);
+			copied = end + 1;
+			start = line.indexOf(PLACEHOLDER_START, copied);
+		}
+		return ret.append(line, copied, line.length()).toString();
+	}
+
+	/** Brackets the index of a name in a placeholder - these characters can't appear in anything we generate */
+	private static final String PLACEHOLDER_START = "\u0001";
+	private static final String PLACEHOLDER_END = "\u0002";
+}
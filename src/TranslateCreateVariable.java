@@ -22,7 +22,7 @@ public class TranslateCreateVariable extends EsperBaseVisitor<EPLOutput> {
 		EPLOutput globalVariable = new EPLOutput();
 		String varName = ctx.name.getText();
 
-		Type t = Type.getByEsperName(ctx.type);
+		Type t = scope.getFile().getTypes().getByEsperName(ctx.type);
 		if (ctx.constant != null) {
 			globalVariable.add("constant ");
 		}
@@ -33,8 +33,9 @@ public class TranslateCreateVariable extends EsperBaseVisitor<EPLOutput> {
 		}
 		globalVariable.add(";");
 		scope.addVariableToGlobalScope(varName, t);
-		if(Misc.APPROXIMATE_TYPE_MATCHING.containsKey(t.getNameInEsper())) {
-			globalVariable.addWarning(Misc.APPROXIMATE_TYPE_MATCHING.get(t.getNameInEsper()));
+		String approximateTypeWarning = Misc.getApproximateTypeWarning(t.getNameInEsper());
+		if(approximateTypeWarning != null) {
+			globalVariable.addWarning(approximateTypeWarning);
 		}
 		return new EPLOutput().addLine(globalVariable);
 	}
@@ -7,31 +7,53 @@
  */
 package com.apama.e2a;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.NavigableMap;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
-
-import org.antlr.v4.runtime.tree.ParseTree;
-
-import com.apama.e2a.EsperParser.CreateExpressionContext;
-import com.apama.e2a.EsperParser.CreateVariableContext;
-import com.apama.e2a.EsperParser.CreateWindowContext;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 
 public class TranslateEsperFile extends EsperBaseVisitor<EPLOutput> {
 	
 	private final Scope scope = new Scope(this);
-	private NavigableMap<Integer, String> comments = new TreeMap<>();
+	private final EsperComments comments = new EsperComments();
 	private String defaultMonitorName;
+	private final TypeRegistry types;
+	private final StatementCache statementCache;
 
 	/**
 	 * Create a TranslateEsperFile instance.
 	 * @param esperFilename the name of the esper filename we're translating (without any path prefix)
 	 */
 	TranslateEsperFile(String esperFilename) {
+		this(esperFilename, new TypeRegistry());
+	}
+
+	/**
+	 * Create a TranslateEsperFile instance that looks up and declares types in an existing registry.
+	 * @param esperFilename the name of the esper filename we're translating (without any path prefix)
+	 * @param types the types known to this translation
+	 */
+	TranslateEsperFile(String esperFilename, TypeRegistry types) {
+		this(esperFilename, types, null);
+	}
+
+	/**
+	 * Create a TranslateEsperFile instance that reuses statement translations from a cache shared with other files.
+	 * @param esperFilename the name of the esper filename we're translating (without any path prefix)
+	 * @param types the types known to this translation
+	 * @param statementCache translations of statements to reuse, or null to translate every statement
+	 */
+	TranslateEsperFile(String esperFilename, TypeRegistry types, StatementCache statementCache) {
+		this.types = types;
+		this.statementCache = statementCache;
 		final int index = esperFilename.lastIndexOf(".");
 		if (index > 0) {
 			esperFilename = esperFilename.substring(0, index);
@@ -39,54 +61,167 @@ public class TranslateEsperFile extends EsperBaseVisitor<EPLOutput> {
 		this.defaultMonitorName = esperFilename.replaceAll("\\s|-|\\.", "_"); // Replace whitespace, dash and period with _
 	}
 
-	/** add a comment to the @comments map */
+	/** add a comment to @comments - see EsperComments.add */
 	void addComment(int index, String comment) {
-		comments.put(index, comment);
+		comments.add(index, comment);
 	}
 
 	@Override
 	/** Turns the whole file into a single monitor and top-level event declarations, spinning up various statements as part of onload */
 	public EPLOutput visitEsperFile(EsperParser.EsperFileContext ctx) {
-		EPLOutput monitorGlobals = new EPLOutput();
-		EPLOutput fileGlobals = new EPLOutput();
-		EPLOutput onloadContents = new EPLOutput();
-		EPLOutput monitorDecl = new EPLOutput();
+		translateStatements(ctx);
+		return getOutput();
+	}
+
+	/** The whole translation of the file, which must already have been done by translateStatements */
+	EPLOutput getOutput() {
+		List<String> lines = new ArrayList<String>();
+		try {
+			writeTo(EPLWriter.to(lines));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // can't happen, as it's just adding to a list
+		}
+		return new EPLOutput(lines);
+	}
+
+	/**
+	 * Translate all of the statements in the file, ready for writeTo.
+	 * The statements are kept in separate sections, because the usings and other declarations that go before them
+	 * aren't known until every statement has been translated.
+	 */
+	void translateStatements(EsperParser.EsperFileContext ctx) {
+		translateStatements(ctx, null);
+	}
+
+	/**
+	 * Like translateStatements(EsperFileContext), but each run of statements that don't declare anything (and so
+	 * don't change how the statements after them are translated) is translated in parallel on pool. The output is
+	 * exactly the same as translating them one by one: the effects of each statement, including its unique names,
+	 * are applied to the file in the order of the statements.
+	 * @param pool the pool to translate statements on, or null to translate them one by one
+	 */
+	void translateStatements(EsperParser.EsperFileContext ctx, ExecutorService pool) {
+		beginStatements(false);
+		translateModuleDecl(ctx.moduleDecl());
+		List<EsperParser.StatementContext> statements = ctx.statement();
+		int i = 0;
+		while (i < statements.size()) {
+			int end = i;
+			while (pool != null && end < statements.size() && preservesScope(statements.get(end))) {
+				end++;
+			}
+			if (end - i > 1) {
+				translateConcurrently(statements.subList(i, end), pool);
+				i = end;
+			} else {
+				translateTopLevelStatement(statements.get(i));
+				i++;
+			}
+		}
+		endStatements();
+	}
+
+	/** Translate statements that all preserve the scope at the same time, adding them to the file in order */
+	private void translateConcurrently(List<EsperParser.StatementContext> statements, ExecutorService pool) {
+		final String fingerprint = statementCache == null ? null : getScopeFingerprint();
+		List<Callable<StatementCache.Translation>> tasks = new ArrayList<Callable<StatementCache.Translation>>();
+		for (final EsperParser.StatementContext s : statements) {
+			tasks.add(() -> translatePreservingScope(s, fingerprint));
+		}
+		try {
+			List<Future<StatementCache.Translation>> translations = pool.invokeAll(tasks);
+			for (int i = 0; i < statements.size(); i++) {
+				addTopLevelStatement(statements.get(i), translations.get(i).get().applyTo(this));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while translating statements", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error) throw (Error) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Start translating the statements of a file, which are then passed to translateModuleDecl and translateTopLevelStatement one by one.
+	 * @param spool true to keep the translated statements in temporary files rather than in memory - see deleteSpools
+	 */
+	void beginStatements(boolean spool) {
+		try {
+			fileGlobals = spool ? EPLSpool.inTempFile() : EPLSpool.inMemory();
+			monitorGlobals = spool ? EPLSpool.inTempFile() : EPLSpool.inMemory();
+			onloadContents = spool ? EPLSpool.inTempFile() : EPLSpool.inMemory();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Translate the module declaration, or null if the file doesn't have one. This must come before the first statement. */
+	void translateModuleDecl(EsperParser.ModuleDeclContext moduleDecl) {
+		monitorDecl = new EPLOutput();
 		String monitorName = this.defaultMonitorName;
-		if (ctx.moduleDecl() != null) {
-			monitorDecl.addRelatedComments(comments, ctx.moduleDecl().getStop().getStopIndex());
-			monitorName = ctx.moduleDecl().moduleName.getText();
+		if (moduleDecl != null) {
+			monitorDecl.addRelatedComments(comments, moduleDecl.getStop().getStopIndex());
+			monitorName = moduleDecl.moduleName.getText();
 		} else {
 			monitorDecl.addWarning("The Esper input file did not contain a module declaration. The monitor name was inferred from the name of the file.");
 		}
 		monitorDecl.addLine("monitor " + monitorName);
+	}
 
+	/** Translate the next statement of the file, adding it to the right section */
+	void translateTopLevelStatement(EsperParser.StatementContext s) {
+		addTopLevelStatement(s, translateStatement(s));
+	}
 
-		for (EsperParser.StatementContext s : ctx.statement()) {
-			EPLOutput dest = monitorGlobals;
-			if (s.schemaDecl() != null) {
-				dest = fileGlobals;
-			}
-			
-			if (s.selectClause() != null || s.onSet() != null) {
-				dest = onloadContents;
-			}
+	/**
+	 * Add the next statement of the file to the right section, along with the comments before it
+	 * @param e the translation of the statement, or null if it has nothing to translate
+	 */
+	private void addTopLevelStatement(EsperParser.StatementContext s, EPLOutput e) {
+		EPLSpool dest = monitorGlobals;
+		if (s.schemaDecl() != null) {
+			dest = fileGlobals;
+		}
+		
+		if (s.selectClause() != null || s.onSet() != null) {
+			dest = onloadContents;
+		}
 
-			dest.addRelatedComments(comments, s.getStop().getStopIndex());
-
-			for (int i = 0; i < s.getChildCount(); i++) {
-				ParseTree i_ = s.getChild(i);
-				if (!i_.getText().equals(";")) {
-					EPLOutput e = this.visit(s.getChild(i));
-					if (e == null) {
-						dest.addLine(EPLOutput.cannotTranslate(s));
-					} else {
-						dest.addLine(e);
-					}
-				}
-			}
-			dest.addLine("\t");
+		EPLOutput statement = new EPLOutput().addRelatedComments(comments, s.getStop().getStopIndex());
+		if (e != null) {
+			statement.addLine(e);
 		}
+		dest.add(statement.addLine("\t"));
+	}
+
+	/**
+	 * Add a TODO in place of a statement that doesn't parse.
+	 * @param esper the text of the statement
+	 * @param stopIndex index in the file of the end of the statement
+	 */
+	void addUnparseableStatement(String esper, int stopIndex, EsperSyntaxException error) {
+		EPLOutput statement = new EPLOutput().addRelatedComments(comments, stopIndex);
+		statement.addLine(EPLOutput.cannotTranslate(esper, "syntax error at line " + error.getLine() + ":" + error.getCharPositionInLine() + " (" + error.getProblem() + ") in", true));
+		monitorGlobals.add(statement.addLine("\t"));
+	}
+
+	/** Called after the last statement has been translated */
+	void endStatements() {
+		// Comments from the end of the esper file, if any
+		trailingComments = comments.takeAll();
+	}
 
+	/** Delete the temporary files used by beginStatements, after which the translation can't be written */
+	void deleteSpools() throws IOException {
+		for (EPLSpool section : new EPLSpool[] { fileGlobals, monitorGlobals, onloadContents }) {
+			if (section != null) section.delete();
+		}
+	}
+
+	/** Write the whole translation of the file, which must already have been done by translateStatements, and close out */
+	void writeTo(EPLWriter out) throws IOException {
 		EPLOutput monitorSubscriptions = new EPLOutput();
 		for(String channel: this.channelSubscriptions){
 			monitorSubscriptions.addLine("monitor.subscribe(" + channel + ");");
@@ -94,7 +229,6 @@ public class TranslateEsperFile extends EsperBaseVisitor<EPLOutput> {
 		if(!this.channelSubscriptions.isEmpty()) {
 			monitorSubscriptions.addLine();
 		}
-		onloadContents = monitorSubscriptions.addLine(onloadContents);
 
 		EPLOutput usings = new EPLOutput();
 		for(String s : this.used) {
@@ -109,83 +243,104 @@ public class TranslateEsperFile extends EsperBaseVisitor<EPLOutput> {
 			utilityEPLActionsOutput.add(action.addEPLAction());
 		}
 
-		return new EPLOutput()
-			.addLine(usings)
-			.addLine(fileGlobals)
-			.addLine(monitorDecl)
-			.addBlock(
-				monitorGlobals.
-				addLine("action onload()").addBlock(onloadContents).
-				add(utilityEPLActionsOutput)
-			)
-			// Add comments from the end of the esper file if any
-			.addRelatedComments(comments, Integer.MAX_VALUE);
+		out.addLine(usings);
+		fileGlobals.writeTo(out);
+		out.addLine(monitorDecl).beginBlock();
+		monitorGlobals.writeTo(out);
+		out.addLine("action onload()").beginBlock().addLine(monitorSubscriptions);
+		onloadContents.writeTo(out);
+		out.endBlock().add(utilityEPLActionsOutput).endBlock();
+		for (String comment : trailingComments) {
+			out.addLine(comment);
+		}
+		out.close();
 	}
 
-	@Override
-	public EPLOutput visitCreateWindow(CreateWindowContext ctx) {
-		return EPLOutput.cannotTranslate(ctx, "Create window statement");
-	}
+	/** Sections of the translation - see translateStatements */
+	private EPLOutput monitorDecl;
+	private EPLSpool fileGlobals, monitorGlobals, onloadContents;
 
-	@Override
-	/** We don't currently support creating variables/constants */
-	public EPLOutput visitCreateVariable(CreateVariableContext ctx) {
-		return new TranslateCreateVariable(this.scope).visitCreateVariable(ctx);
-	}
+	/** @see translateStatements */
+	private List<String> trailingComments;
 
-	@Override
-	/** We don't currently support creating expressions */
-	public EPLOutput visitCreateExpression(CreateExpressionContext ctx) {
-		return EPLOutput.cannotTranslate(ctx, "Custom expressions", false);
+	/**
+	 * Translate a single statement, and apply its effects (usings, subscriptions and so on) to this file.
+	 * Statements that don't change the scope are looked up in the statement cache, if there is one.
+	 * @return the translation, or null if the statement has nothing to translate
+	 */
+	private EPLOutput translateStatement(EsperParser.StatementContext s) {
+		if (!preservesScope(s)) {
+			StatementEffects effects = new StatementEffects();
+			EPLOutput e = translate(s, scope.forStatement(effects));
+			// This may have declared a schema or variable
+			scopeFingerprint = null;
+			return e == null ? null : effects.applyTo(this, e);
+		}
+		return translatePreservingScope(s, statementCache == null ? null : getScopeFingerprint()).applyTo(this);
 	}
 
-	@Override
-	/** @see TranslateOnSet */
-	public EPLOutput visitOnSet(EsperParser.OnSetContext ctx) {
-		return new TranslateOnSet(this.scope).visitOnSet(ctx);
+	/** True if the statement can't declare anything, so statements after it are translated the same way whether or not it's there */
+	private static boolean preservesScope(EsperParser.StatementContext s) {
+		return s.selectClause() != null || s.onSet() != null;
 	}
 
-	@Override
-	/** @see TranslateUnwindowedSelectClause */
-	public EPLOutput visitSelectClause(EsperParser.SelectClauseContext ctx) {
-		if (ctx.context != null) {
-			return EPLOutput.cannotTranslate(ctx, "Select statement with context");
-		} else if (new ClassifySelectClause().visit(ctx)) {
-			return EPLOutput.cannotTranslate(ctx, "Select statement using a window");
-		} else {
-			return new TranslateUnwindowedSelectClause(this.scope).visitSelectClause(ctx);
+	/**
+	 * Translate a statement that preserves the scope, without applying its effects to the file.
+	 * This doesn't change anything but the statement cache, so it can be called for several statements at once.
+	 * @param scopeFingerprint the current getScopeFingerprint, if there is a statement cache
+	 */
+	private StatementCache.Translation translatePreservingScope(EsperParser.StatementContext s, String scopeFingerprint) {
+		String key = null;
+		if (statementCache != null) {
+			key = StatementCache.keyFor(s, scopeFingerprint);
+			StatementCache.Translation cached = statementCache.get(key);
+			if (cached != null) {
+				return cached;
+			}
 		}
+		StatementEffects effects = new StatementEffects();
+		StatementCache.Translation ret = new StatementCache.Translation(translate(s, scope.forStatement(effects)), effects);
+		if (statementCache != null) {
+			statementCache.put(key, ret);
+		}
+		return ret;
 	}
 
-	@Override
-	/** @see TranslateAnnotation */
-	public EPLOutput visitStatementAnnotation(EsperParser.StatementAnnotationContext ctx) {
-		return new TranslateAnnotation().visit(ctx);
-	}
-
-	@Override
-	/** @see TranslateSchemaDecl */
-	public EPLOutput visitSchemaDecl(EsperParser.SchemaDeclContext ctx) {
-		return new TranslateSchemaDecl(this.scope).visitSchemaDecl(ctx);
+	/** Translate a statement in its own scope, turning a stack overflow into an EsperSyntaxException for the statement */
+	private static EPLOutput translate(EsperParser.StatementContext s, Scope statementScope) {
+		try {
+			return new TranslateStatement(statementScope).visitStatement(s);
+		} catch (StackOverflowError e) {
+			throw EsperSyntaxException.nestedTooDeeply(s.getStart(), e);
+		}
 	}
 
-	/** Called by other translation visitors to say what types they're using, so we can turn it into a bunch of (de-duplicated) 'using' declarations if necessary */
-	public void addUsing(Type t) {
-		if(!t.fqNameInEPL().formatOutput().equals(t.nameInEPL().formatOutput())) {
-			used.add(t.fqNameInEPL().formatOutput());
+	/** Describes the schemas and variables declared so far, which is everything in the file that can affect how a statement is translated */
+	private String getScopeFingerprint() {
+		if (scopeFingerprint == null) {
+			StringBuilder ret = new StringBuilder(types.getFingerprint());
+			for (Map.Entry<String, Type> var : scope.getVars().entrySet()) {
+				ret.append(var.getKey()).append('=').append(var.getValue().getFingerprint()).append('\n');
+			}
+			scopeFingerprint = ret.toString();
 		}
+		return scopeFingerprint;
 	}
 
-	/** Like the other addUsing, but used for an EPL type that didn't come directly from an equivalent Esper type. For example, a utility type like 'AnyExtractor'. */
+	/** @see getScopeFingerprint */
+	private String scopeFingerprint;
+
+	/**
+	 * Called (via StatementEffects) for the types that statements are using, so we can turn it into a bunch of (de-duplicated) 'using' declarations.
+	 * @see Scope.addUsing
+	 */
 	public void addUsing(String fqNameInEPL) {
 		used.add(fqNameInEPL);
 	}
 
-	/** Add to the list of monitor subscriptions */
-	public void addChannelSubscription(Type t) {
-		if(t instanceof InputType){
-			addChannelSubscription(t.getSubscribeChannel());
-		}
+	/** The types known to this translation, including the schemas declared in this file */
+	public TypeRegistry getTypes() {
+		return types;
 	}
 
 	public String getDefaultMonitorName(){
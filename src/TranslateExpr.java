@@ -7,6 +7,7 @@
  */
 package com.apama.e2a;
 
+import java.util.ArrayDeque;
 import java.util.List;
 import java.util.ArrayList;
 import org.antlr.v4.runtime.tree.RuleNode;
@@ -16,15 +17,90 @@ import org.antlr.v4.runtime.ParserRuleContext;
 public class TranslateExpr extends EsperBaseVisitor<EPLOutput> {
 	private Scope scope;
 
+	/** Translates the function calls in the expression, created when the first one is found */
+	private TranslateFunction translateFunction;
+
 	public TranslateExpr(Scope scope) {
 		this.scope = scope;
 	}
 
+	/** For the arguments of the function calls translated by translateFunction, which then shares this */
+	TranslateExpr(Scope scope, TranslateFunction translateFunction) {
+		this.scope = scope;
+		this.translateFunction = translateFunction;
+	}
+
+	/**
+	 * Translate a whole expression, as visit does, but remember the translation for the rest of the statement if it had
+	 * no effects (see Scope.getMemoisedTranslation). For expressions that are likely to be translated more than once.
+	 */
+	public EPLOutput translate(EsperParser.ExprContext ctx) {
+		int effectsBefore = scope.effectCount();
+		EPLOutput ret = visitExpr(ctx);
+		if (scope.effectCount() == effectsBefore) {
+			scope.memoiseTranslation(ctx, ret);
+		}
+		return ret;
+	}
+
 	@Override
 	/**
-	 * Mostly passes through to other rules, but deals with binary operators - almost identical to EPL, except for '||' which appends strings, and "is" which is equality operator "=".
+	 * Mostly passes through to other rules, but deals with operators - almost identical to EPL, except for '||' which appends strings, and "is" which is equality operator "=".
+	 *
+	 * Machine-generated Esper can have thousands of operators in a row, or parentheses nested hundreds deep, which
+	 * the parser turns into a tree as deep as that. So rather than by recursion, the operators and parentheses are
+	 * translated with a stack of our own, from the left-most operand to the right, in the same order recursion would.
 	 */
-	public EPLOutput visitExpr(EsperParser.ExprContext ctx) {
+	public EPLOutput visitExpr(EsperParser.ExprContext root) {
+		EPLOutput memoised = scope.getMemoisedTranslation(root);
+		if (memoised != null) {
+			return memoised;
+		}
+		if (!isOperation(root)) {
+			return translateOperand(root);
+		}
+		// Nodes still to translate, and whether each one's operands have been translated yet
+		ArrayDeque<EsperParser.ExprContext> todo = new ArrayDeque<EsperParser.ExprContext>();
+		ArrayDeque<Boolean> operandsTranslated = new ArrayDeque<Boolean>();
+		// Translations of the operands of the operations in todo, the right-most on top
+		ArrayDeque<EPLOutput> translated = new ArrayDeque<EPLOutput>();
+		todo.push(root);
+		operandsTranslated.push(false);
+		while (!todo.isEmpty()) {
+			EsperParser.ExprContext ctx = todo.pop();
+			if (operandsTranslated.pop()) {
+				translated.push(translateOperation(ctx, translated));
+				continue;
+			}
+			memoised = ctx == root ? null : scope.getMemoisedTranslation(ctx);
+			if (memoised != null) {
+				translated.push(memoised);
+			} else if (isOperation(ctx)) {
+				todo.push(ctx);
+				operandsTranslated.push(true);
+				if (ctx.expr(1) != null) {
+					todo.push(ctx.expr(1));
+					operandsTranslated.push(false);
+				}
+				todo.push(ctx.expr(0));
+				operandsTranslated.push(false);
+			} else {
+				translated.push(translateOperand(ctx));
+			}
+		}
+		return translated.pop();
+	}
+
+	/** Returns true if ctx is an operator or parentheses, whose operands are translated by visitExpr before it */
+	private static boolean isOperation(EsperParser.ExprContext ctx) {
+		if (ctx.enclosed != null || ctx.comparisonOperator != null || ctx.booleanOperator != null) {
+			return true;
+		}
+		return ctx.operator != null && !ctx.operator.getText().equals("<>");
+	}
+
+	/** Translate an expression that isn't an operation */
+	private EPLOutput translateOperand(EsperParser.ExprContext ctx) {
 		if (ctx.timeUnit() != null) {
 			return EPLOutput.cannotTranslate(ctx, "Time literals");
 		}
@@ -37,45 +113,45 @@ public class TranslateExpr extends EsperBaseVisitor<EPLOutput> {
 		if (ctx.exprUnsupported() != null) {
 			return visit(ctx.exprUnsupported());
 		}
-		if (ctx.getText().startsWith("(") && ctx.getText().endsWith(")") ){
-			if(ctx.operator == null && ctx.comparisonOperator == null && ctx.booleanOperator == null) {
-				return new EPLOutput().addLine("(").add(visitExpr(ctx.expr(0))).add(")");
-			} else {
-				EPLOutput out = visit(ctx.expr(0));
-				if (ctx.operator != null) {
-					out.add(" ").add(ctx.operator).add(" ");
-				} else if (ctx.comparisonOperator != null) {
-					out.add(ctx.comparisonOperator);
-				} else {
-					out.add(ctx.booleanOperator);
-				}
-				return out.add( visit(ctx.expr(1))); 
+		if (ctx.operator != null) { // <>
+			return EPLOutput.cannotTranslate(ctx, "SQL-style not-equals operator");
+		}
+		return TranslateExpr.super.visitExpr(ctx);
+	}
+
+	/** Translate an operation, given the translations of its operands on top of translated (which are taken off it) */
+	private static EPLOutput translateOperation(EsperParser.ExprContext ctx, ArrayDeque<EPLOutput> translated) {
+		if (ctx.enclosed != null) {
+			// Add the operand itself rather than printing the Parenthesised node, which would print the operand again
+			// (and everything in it, which is a lot for deeply nested parentheses)
+			EPLOutput enclosed = translated.pop();
+			EPLCode.Parenthesised code = new EPLCode.Parenthesised(EPLCode.Expr.of(enclosed.copy()));
+			return new EPLOutput().addLine("(").add(enclosed).add(")").setCode(code);
+		}
+		String opLower;
+		if (ctx.operator != null) {
+			opLower = ctx.operator.getText().toLowerCase();
+			if(opLower.equals("not")) {
+				return new EPLOutput().addLine("not ").add(translated.pop());
 			}
-		} else if (ctx.operator == null && ctx.comparisonOperator == null && ctx.booleanOperator == null) {
-			return TranslateExpr.super.visitExpr(ctx);
-		} else {
-			String opLower;
-			if (ctx.operator != null) {
-				opLower = ctx.operator.getText().toLowerCase();
-				if (opLower.equals("||")) {
-					return visit(ctx.expr(0)).add(" + ").add(visit(ctx.expr(1)));
-				} else if(opLower.equals("not")) {
-					return new EPLOutput().addLine("not ").add(visit(ctx.expr(0)));
-				} else if(opLower.equals("<>")) {
-					return EPLOutput.cannotTranslate(ctx, "SQL-style not-equals operator");
-				}
-			} else if (ctx.comparisonOperator != null) { 
-				opLower = ctx.comparisonOperator.getText().toLowerCase();
-				if (opLower.equals("is not")) {
-					return visit(ctx.expr(0)).add(" != ").add(visit(ctx.expr(1)));
-				} else if (opLower.equals("is")) {
-					return visit(ctx.expr(0)).add(" = ").add(visit(ctx.expr(1)));
-				}
-			} else { // ctx.booleanOperator != null
-				opLower = ctx.booleanOperator.getText().toLowerCase();
+		} else if (ctx.comparisonOperator != null) {
+			opLower = ctx.comparisonOperator.getText().toLowerCase();
+		} else { // ctx.booleanOperator != null
+			opLower = ctx.booleanOperator.getText().toLowerCase();
+		}
+		EPLOutput rhs = translated.pop();
+		EPLOutput lhs = translated.pop();
+		if (ctx.operator != null && opLower.equals("||")) {
+			return lhs.add(" + ").add(rhs);
+		} else if (ctx.comparisonOperator != null) {
+			if (opLower.equals("is not")) {
+				opLower = "!=";
+			} else if (opLower.equals("is")) {
+				opLower = "=";
 			}
-			return visit(ctx.expr(0)).add(" ").add(opLower).add(" ").add(visit(ctx.expr(1)));
+			return new EPLCode.Comparison(EPLCode.Expr.of(lhs), opLower, EPLCode.Expr.of(rhs)).toEPLOutput();
 		}
+		return lhs.add(" ").add(opLower).add(" ").add(rhs);
 	}
 
 	@Override
@@ -85,16 +161,20 @@ public class TranslateExpr extends EsperBaseVisitor<EPLOutput> {
 	 * - Esper 'long' literals have a 'l' suffix
 	 * */
 	public EPLOutput visitLiteral(EsperParser.LiteralContext ctx) {
+		final String text = ctx.getText();
 		if(ctx.FLOAT() != null || ctx.LONG() != null) {
-			return new EPLOutput(ctx.getText().substring(0, ctx.getText().length() - 1));
+			return new EPLCode.NumberLiteral(text.substring(0, text.length() - 1)).toEPLOutput();
 		}
-		if(ctx.getText().equals("null")) {
+		if(ctx.DOUBLE() != null || ctx.INTEGER() != null) {
+			return new EPLCode.NumberLiteral(text).toEPLOutput();
+		}
+		if(text.equals("null")) {
 			return EPLOutput.cannotTranslate(ctx, "'null' values");
 		}
 		if(ctx.booleanLiteral() != null) {
-			return new EPLOutput(ctx.getText().toLowerCase());
+			return new EPLCode.Literal(text.toLowerCase()).toEPLOutput();
 		}
-		return new EPLOutput(ctx);
+		return new EPLCode.Literal(text).toEPLOutput();
 	}
 
 	@Override
@@ -106,7 +186,7 @@ public class TranslateExpr extends EsperBaseVisitor<EPLOutput> {
 			if(i == 0){
 				dictionaryOut.add("<any> ");
 			}
-			dictionaryOut.add(new TranslateExpr(this.scope).visit(ctx.values.get(i)));
+			dictionaryOut.add(visit(ctx.values.get(i)));
 			if(i != ctx.keys.size()-1){
 				dictionaryOut.add(", ");
 			}
@@ -117,20 +197,16 @@ public class TranslateExpr extends EsperBaseVisitor<EPLOutput> {
 	@Override
 	/** Array in Esper is translated to a sequence in EPL */
 	public EPLOutput visitArray(EsperParser.ArrayContext ctx){
-		if(ctx.expr(0) == null){
+		List<EsperParser.ExprContext> elements = ctx.expr();
+		if(elements.isEmpty()){
 			return new EPLOutput("new sequence<any>");
 		}
-		EPLOutput arrEPL = new EPLOutput().add("[");
-		int i = 0;
-		while(ctx.expr(i) != null){
-			if(i == 0){
-				arrEPL.add("<any> ");
-			}
-			arrEPL.add(new TranslateExpr(this.scope).visit(ctx.expr(i)));
-			i++;
-			if(ctx.expr(i) != null){
+		EPLOutput arrEPL = new EPLOutput().add("[<any> ");
+		for(int i = 0; i < elements.size(); i++){
+			if(i != 0){
 				arrEPL.add(", ");
 			}
+			arrEPL.add(visit(elements.get(i)));
 		}
 		return arrEPL.add("]");
 	}
@@ -143,26 +219,29 @@ public class TranslateExpr extends EsperBaseVisitor<EPLOutput> {
 	public EPLOutput visitMemberLookup(EsperParser.MemberLookupContext ctx) {
 		// check if the entire text is already in the scope as a variable before doing anything else
 		// It avoids any mistranslation of known field names used as variable identifiers
-		if (scope.getVar(ctx.getText()) != null) {
-			return new EPLOutput().add(ctx.getText());
+		final String text = ctx.getText();
+		if (scope.getVar(text) != null) {
+			return new EPLOutput().add(text);
 		}
 
 		EPLOutput object = null;
 		String identifer0 = ctx.identifier(0).getText();
-		String pathTail = ctx.getText();
+		String pathTail = text;
 		if(scope.getVar(identifer0) != null) {
 			object = new EPLOutput().add(identifer0).setExprType(scope.getVar(identifer0));
 			// Don't add coassignee to pathTail
-			pathTail = pathTail.replaceFirst(identifer0+".", "");
+			if (ctx.identifier().size() > 1) {
+				pathTail = pathTail.substring(identifer0.length() + 1);
+			}
 		}
 		EPLOutput eplMemberLookup = Misc.commonPathMapping(object, pathTail, true);
 		if(eplMemberLookup != null) {
-			return eplMemberLookup;
+			return object == null ? eplMemberLookup : EPLCode.FieldPath.ifFieldOf(identifer0, eplMemberLookup);
 		}
 		if(object == null) {
 			return EPLOutput.cannotTranslate(ctx);
 		}
-		return new EPLOutput(ctx.getText());
+		return EPLCode.FieldPath.ifFieldOf(identifer0, new EPLOutput(text));
 	}
 
 	@Override
@@ -172,7 +251,10 @@ public class TranslateExpr extends EsperBaseVisitor<EPLOutput> {
 
 	@Override
 	public EPLOutput visitFunctionCall(EsperParser.FunctionCallContext ctx){
-		return new TranslateFunction(this.scope).visit(ctx);
+		if (translateFunction == null) {
+			translateFunction = new TranslateFunction(this.scope, this);
+		}
+		return translateFunction.visit(ctx);
 	}
 	
 	@Override
@@ -195,7 +195,7 @@ public class TranslateFragments extends EsperBaseVisitor<EPLOutput> {
 						Node child2 = child1.visitChild(PATH2);
 						if (isMeasurement && child2.isMeasurementValueNode()) {
 							// Can map to output.measurements field on Measurement 
-							scope.getFile().addUsing("com.apama.cumulocity.MeasurementValue");
+							scope.addUsing("com.apama.cumulocity.MeasurementValue");
 							EPLOutput measurementValue = child2.generateMeasurementValueEPL();
 							List<String> pathToMeasurementValue = new ArrayList<String>();
 							pathToMeasurementValue.add(PATH1);
@@ -15,64 +15,134 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 import java.util.Set;
-import java.util.Map;
 
 public class TranslateFunction extends EsperBaseVisitor<EPLOutput> {
 	private Scope scope;
 
-	private static final Set<String> ESPER_FRAGMENT_FUNCTION_NAMES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
-		"getString",	
-		"getNumber"
-	)));
+	/** Translates the arguments - visitors have no state of their own, so one is shared for every argument */
+	private final TranslateExpr translateExpr;
 
-	/* ESPER_TO_EPL_INTEGER - A set of Esper integer types, used by esperCastToEplType.
-	 * Esper integral types - all are converted to EPL integer type. The end user should call .floor() if the
-	 * expression returns non float or decimal type. In such case EPL compiler alerts the user for manual edit.
-	 * */
-	private static final Set<String> ESPER_TO_EPL_INTEGER = Collections.unmodifiableSet(new HashSet<String>() {{
-		add("long");
-		add("Long");
-		add("Int");
-		add("Integer");
-		add("int");
-	}});
-
-	/* ESPER_TO_EPL_FLOAT - A set of Esper multi-precision types, used by esperCastToEplType.
-	 * Esper multi-precision types - EPL has only float type. It is safer to call .toFloat() on an stringified float.
-	 * Rest of the expressions are translated as they are.
-	 * */
-	private static final Set<String> ESPER_TO_EPL_FLOAT = Collections.unmodifiableSet(new HashSet<String>() {{
-		add("float");
-		add("Float");
-		add("double");
-		add("Double");
-		add("BigDecimal");
-		add("java.math.BigDecimal");
-		add("Number");
-	}});
-
-	/* ESPER_TO_EPL_STRING - A set of Esper string types, used by esperCastToEplType.
-	 * Esper string types - The set is created to avoid calling .toString() on string types.
-	 * Rest of the expressions are translated with ".toString()" as it is safer to call .toStirng() on most of the EPL types.
-	 * */
-	private static final Set<String> ESPER_TO_EPL_STRING = Collections.unmodifiableSet(new HashSet<String>() {{
-		add("string");
-		add("String");
-		add("java.lang.String");
-	}});
+	/**
+	 * The Esper types that cast() can convert to, used by esperCastToEplType. These are in a holder class so they are
+	 * only built if a file uses cast.
+	 */
+	private static final class CastTypes {
+		/* ESPER_TO_EPL_INTEGER - A set of Esper integer types.
+		 * Esper integral types - all are converted to EPL integer type. The end user should call .floor() if the
+		 * expression returns non float or decimal type. In such case EPL compiler alerts the user for manual edit.
+		 * */
+		static final Set<String> ESPER_TO_EPL_INTEGER = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			"long",
+			"Long",
+			"Int",
+			"Integer",
+			"int"
+		)));
+
+		/* ESPER_TO_EPL_FLOAT - A set of Esper multi-precision types.
+		 * Esper multi-precision types - EPL has only float type. It is safer to call .toFloat() on an stringified float.
+		 * Rest of the expressions are translated as they are.
+		 * */
+		static final Set<String> ESPER_TO_EPL_FLOAT = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			"float",
+			"Float",
+			"double",
+			"Double",
+			"BigDecimal",
+			"java.math.BigDecimal",
+			"Number"
+		)));
+
+		/* ESPER_TO_EPL_STRING - A set of Esper string types.
+		 * Esper string types - The set is created to avoid calling .toString() on string types.
+		 * Rest of the expressions are translated with ".toString()" as it is safer to call .toStirng() on most of the EPL types.
+		 * */
+		static final Set<String> ESPER_TO_EPL_STRING = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			"string",
+			"String",
+			"java.lang.String"
+		)));
+	}
 
 	TranslateFunction(Scope scope) {
 		this.scope = scope;
+		this.translateExpr = new TranslateExpr(scope, this);
+	}
+
+	/** For the function calls in an expression being translated by translateExpr, which then shares this */
+	TranslateFunction(Scope scope, TranslateExpr translateExpr) {
+		this.scope = scope;
+		this.translateExpr = translateExpr;
+	}
+
+	/** How a call to a function is translated */
+	private interface FunctionTranslation {
+		EPLOutput translate(TranslateFunction translator, EsperParser.FunctionCallContext ctx);
+	}
+
+	/**
+	 * The translation of every function we know about, keyed by its name in Esper (case-sensitively, like Esper). These
+	 * are our own, then those of any FunctionTranslators on the classpath, which replace ours if they have the same name.
+	 * If the FunctionTranslators can't be used, only our own are here.
+	 */
+	private static final Map<String, FunctionTranslation> FUNCTION_TRANSLATIONS;
+
+	/** Why the FunctionTranslators on the classpath can't be used, or null if they can - see checkFunctionTranslators */
+	private static final String FUNCTION_TRANSLATORS_PROBLEM;
+
+	static {
+		final Map<String, FunctionTranslation> result = initFunctionTranslations();
+		String problem = null;
+		try {
+			addFunctionTranslators(result);
+		} catch (IllegalStateException | ServiceConfigurationError e) {
+			problem = e.getMessage();
+		}
+		FUNCTION_TRANSLATIONS = Collections.unmodifiableMap(problem == null ? result : initFunctionTranslations());
+		FUNCTION_TRANSLATORS_PROBLEM = problem;
 	}
 
-	private static Map<String, String> initMethodTranslations() {
-		final Map<String, String> result = new HashMap<String, String>();
-		result.put("Test", "EPLTranslated");
-		return Collections.unmodifiableMap(result);
+	/**
+	 * Check that the FunctionTranslators on the classpath can be used - that they could all be loaded, and no two of
+	 * them translate the same function.
+	 * @throws IllegalStateException saying what is wrong if they can't
+	 */
+	static void checkFunctionTranslators() {
+		if (FUNCTION_TRANSLATORS_PROBLEM != null) {
+			throw new IllegalStateException(FUNCTION_TRANSLATORS_PROBLEM);
+		}
 	}
 
-	private static final Map<String, String> ESPER_TO_EPL_METHOD_TRANSLATIONS = initMethodTranslations();
+	private static Map<String, FunctionTranslation> initFunctionTranslations() {
+		final Map<String, FunctionTranslation> result = new HashMap<String, FunctionTranslation>();
+		result.put("getString", TranslateFunction::getFragment);
+		result.put("getNumber", TranslateFunction::getFragment);
+		result.put("findManagedObjectById", TranslateFunction::findManagedObjectById);
+		result.put("findFirstAlarmBySourceAndStatusAndType", TranslateFunction::findFirstAlarmBySourceAndStatusAndType);
+		result.put("findFirstManagedObjectByType", TranslateFunction::findFirstManagedObjectByType);
+		result.put("findOneManagedObjectByType", TranslateFunction::findOneManagedObjectByType);
+		result.put("cast", TranslateFunction::esperCastToEplType);
+		result.put("current_timestamp", TranslateFunction::currentTimestamp);
+		result.put("Test", renamedTo("EPLTranslated"));
+		return result;
+	}
+
+	/** Add the translations of the FunctionTranslators on the classpath, throwing an exception if they can't be used */
+	private static void addFunctionTranslators(Map<String, FunctionTranslation> result) {
+		final Map<String, FunctionTranslator> plugins = new HashMap<String, FunctionTranslator>();
+		for (FunctionTranslator plugin : ServiceLoader.load(FunctionTranslator.class, FunctionTranslator.class.getClassLoader())) {
+			for (String name : plugin.getFunctionNames()) {
+				FunctionTranslator other = plugins.put(name, plugin);
+				if (other != null) {
+					throw new IllegalStateException("Both " + other.getClass().getName() + " and " + plugin.getClass().getName() + " translate the function " + name);
+				}
+				result.put(name, (translator, ctx) -> plugin.translate(translator.new Call(ctx)));
+			}
+		}
+	}
 
 	@Override
 	public EPLOutput visitFunctionCall(EsperParser.FunctionCallContext ctx) {
@@ -81,32 +151,9 @@ public class TranslateFunction extends EsperBaseVisitor<EPLOutput> {
 			return EPLOutput.cannotTranslate(ctx, "find... calls outside of a select statement");
 		}
 
-		if (ESPER_FRAGMENT_FUNCTION_NAMES.contains(functionName)) {
-			return getFragment(ctx);
-		} else if(functionName.equals("findManagedObjectById")) {
-			return findManagedObjectById(ctx);
-		} else if ("findFirstAlarmBySourceAndStatusAndType".equals(functionName))  {
-			return findFirstAlarmBySourceAndStatusAndType(ctx);
-		} else if(functionName.equals("findFirstManagedObjectByType")) {
-			return findFirstManagedObjectByType(ctx);
-		} else if(functionName.equals("findOneManagedObjectByType")) {
-			return findOneManagedObjectByType(ctx);
-		} else if(functionName.equals("cast")) {
-			return esperCastToEplType(ctx);
-		} else if(ctx.getText().equals("current_timestamp()")){
-			return new EPLOutput().add("currentTime"); // This is a special case 
-		} else if(ESPER_TO_EPL_METHOD_TRANSLATIONS.containsKey(functionName)) {
-			// Generic case
-			EPLOutput generateOutput = new EPLOutput();
-			generateOutput.add(ESPER_TO_EPL_METHOD_TRANSLATIONS.get(functionName)).add("(");
-			for(int i = 0; ctx.arguments().expr(i) != null; i++){
-				generateOutput.add(new TranslateExpr(this.scope).visit(ctx.arguments().expr(i))); 
-				// If method takes multiple arguments, separate them with commas 
-				if(ctx.arguments().expr(i + 1) != null){
-					generateOutput.add(", ");
-				} 
-			}
-			return generateOutput.add(")");
+		FunctionTranslation translation = FUNCTION_TRANSLATIONS.get(functionName);
+		if (translation != null) {
+			return translation.translate(this, ctx);
 		}
 		return EPLOutput.cannotTranslate(ctx);
 
@@ -130,6 +177,69 @@ public class TranslateFunction extends EsperBaseVisitor<EPLOutput> {
 
 	}
 
+	/** A function that is the same in EPL apart from its name, with each argument translated */
+	private static FunctionTranslation renamedTo(final String nameInEPL) {
+		return (translator, ctx) -> {
+			EPLOutput generateOutput = new EPLOutput();
+			generateOutput.add(nameInEPL).add("(");
+			for(int i = 0; ctx.arguments().expr(i) != null; i++){
+				generateOutput.add(translator.translateExpr.visit(ctx.arguments().expr(i)));
+				// If method takes multiple arguments, separate them with commas
+				if(ctx.arguments().expr(i + 1) != null){
+					generateOutput.add(", ");
+				}
+			}
+			return generateOutput.add(")");
+		};
+	}
+
+	/** current_timestamp() is the time of the current event, which is currentTime in EPL */
+	private EPLOutput currentTimestamp(EsperParser.FunctionCallContext ctx) {
+		if (!ctx.arguments().expr().isEmpty()) {
+			return EPLOutput.cannotTranslate(ctx);
+		}
+		return new EPLOutput().add("currentTime");
+	}
+
+	/** A call of a function translated by a FunctionTranslator */
+	private class Call implements FunctionTranslator.Call {
+		private final EsperParser.FunctionCallContext ctx;
+
+		Call(EsperParser.FunctionCallContext ctx) {
+			this.ctx = ctx;
+		}
+
+		@Override
+		public String getFunctionName() {
+			return ctx.memberLookup().getText();
+		}
+
+		@Override
+		public EsperParser.FunctionCallContext getContext() {
+			return ctx;
+		}
+
+		@Override
+		public int getArgumentCount() {
+			return ctx.arguments().expr().size();
+		}
+
+		@Override
+		public EPLOutput translateArgument(int index) {
+			return translateExpr.visit(ctx.arguments().expr(index));
+		}
+
+		@Override
+		public void addUsing(String fqNameInEPL) {
+			scope.addUsing(fqNameInEPL);
+		}
+
+		@Override
+		public void addChannelSubscription(String channel) {
+			scope.addChannelSubscription(channel);
+		}
+	}
+
 	/**
 	 * Translates a call to the Esper utility functions used to access fragments
 	 * For now, this translation method supports 'getString' and 'getNumber' - this is a weird one.
@@ -142,7 +252,7 @@ public class TranslateFunction extends EsperBaseVisitor<EPLOutput> {
 		String functionName = ctx.memberLookup().getText();
 		boolean isGetString = functionName.equals("getString");
 		boolean isGetNumber = functionName.equals("getNumber");
-		EPLOutput object = new TranslateExpr(this.scope).visit(ctx.arguments().expr(0));
+		EPLOutput object = translateExpr.visit(ctx.arguments().expr(0));
 		if(scope.getVar(ctx.arguments().expr(0).getText()) != null){
 			object.setExprType(scope.getVar(ctx.arguments().expr(0).getText()));
 		}
@@ -182,7 +292,7 @@ public class TranslateFunction extends EsperBaseVisitor<EPLOutput> {
 				return EPLOutput.cannotTranslate(ctx);
 			} else {
 				// Anything other than a Measurement
-				scope.getFile().addUsing("com.apama.util.AnyExtractor");
+				scope.addUsing("com.apama.util.AnyExtractor");
 				EPLOutput ret = new EPLOutput("AnyExtractor(").add(object);
 				ret.add(".params[\"").add(path[0]);
 				if(isGetNumber) {
@@ -208,12 +318,12 @@ public class TranslateFunction extends EsperBaseVisitor<EPLOutput> {
 	private EPLOutput findManagedObjectById(EsperParser.FunctionCallContext ctx) {
 		addUsingAndChannelSubscription("ManagedObject");
 
-		String reqName = scope.getFile().uniqueVarName("fmo");
+		String reqName = scope.uniqueVarName("fmo");
 		EPLOutput asyncBit = new EPLOutput();
 		asyncBit.
 			addLine("integer " + reqName + "_req := Util.generateReqId();").
 			addLine("send FindManagedObject(" + reqName + "_req, ").
-				add(new TranslateExpr(scope).visit(ctx.arguments().expr(0))).
+				add(translateExpr.visit(ctx.arguments().expr(0))).
 				add(", new dictionary<string, string>) to FindManagedObject.SEND_CHANNEL;").
 				addLine();
 
@@ -225,17 +335,16 @@ public class TranslateFunction extends EsperBaseVisitor<EPLOutput> {
 			addLine("on ").add(receive.toEPLOutput()).
 			addLine("   and not ").add(terminate.toEPLOutput());
 
-		scope.getSelect().asyncCall(asyncBit);
-		return new EPLOutput(reqName).add(".managedObject").setExprType(Type.getByEsperName("ManagedObjectCreated"));
+		scope.asyncCall(asyncBit);
+		return new EPLOutput(reqName).add(".managedObject").setExprType(scope.getFile().getTypes().getByEsperName("ManagedObjectCreated"));
 	}
 
 	/** Translates a call to findFirstAlarmBySourceAndStatusAndType. Uses TranslateUnwindowedSelectClause.asyncCall to generate a use of the FindAlarm event protocol. */
 	private EPLOutput findFirstAlarmBySourceAndStatusAndType(EsperParser.FunctionCallContext ctx) {
 		addUsingAndChannelSubscription("Alarm");
 
-		String reqName = scope.getFile().uniqueVarName("findAlarm");
+		String reqName = scope.uniqueVarName("findAlarm");
 		EPLOutput asyncBit = new EPLOutput();
-		TranslateExpr translateExpr = new TranslateExpr(this.scope);
 		asyncBit.
 				addLine("integer " + reqName + "_req := Util.generateReqId();").
 				addLine("send FindAlarm(" + reqName + "_req, ").
@@ -253,22 +362,22 @@ public class TranslateFunction extends EsperBaseVisitor<EPLOutput> {
 			addLine("on ").add(receive.toEPLOutput()).
 			addLine("   and not ").add(terminate.toEPLOutput());
 
-		scope.getSelect().asyncCall(asyncBit);
-		return new EPLOutput(reqName).add(".alarm").setExprType(Type.getByEsperName("AlarmCreated"));
+		scope.asyncCall(asyncBit);
+		return new EPLOutput(reqName).add(".alarm").setExprType(scope.getFile().getTypes().getByEsperName("AlarmCreated"));
 	}
 
 	/** Translates a call to findFirstManagedObjectByType. Uses TranslateUnwindowedSelectClause.asyncCall to generate a use of the FindManagedObject event protocol. */
 	private EPLOutput findFirstManagedObjectByType(EsperParser.FunctionCallContext ctx) {
 		addUsingAndChannelSubscription("ManagedObject");
 
-		String reqName = scope.getFile().uniqueVarName("fmo");
-		String fmo = scope.getFile().uniqueVarName("fmo");
+		String reqName = scope.uniqueVarName("fmo");
+		String fmo = scope.uniqueVarName("fmo");
 		EPLOutput asyncBit = new EPLOutput();
 		asyncBit.
 			addLine("integer " + reqName + "_req := Util.generateReqId();").
 			addLine("FindManagedObject " + fmo + " := new FindManagedObject;").
 			addLine(fmo + ".reqId := " + reqName +"_req;").
-			addLine(fmo + ".params[\"type\"] := " + (new TranslateExpr(scope).visit(ctx.arguments().expr(0))).formatOutput() +";").
+			addLine(fmo + ".params[\"type\"] := " + translateExpr.visit(ctx.arguments().expr(0)).formatOutput() +";").
 			addLine("send " + fmo + " to FindManagedObject.SEND_CHANNEL;").
 			addLine();
 
@@ -280,22 +389,22 @@ public class TranslateFunction extends EsperBaseVisitor<EPLOutput> {
 			addLine("on ").add(receive.toEPLOutput()).
 			addLine("   and not ").add(terminate.toEPLOutput());
 
-		scope.getSelect().asyncCall(asyncBit);
-		return new EPLOutput(reqName).add(".managedObject").setExprType(Type.getByEsperName("ManagedObjectCreated"));
+		scope.asyncCall(asyncBit);
+		return new EPLOutput(reqName).add(".managedObject").setExprType(scope.getFile().getTypes().getByEsperName("ManagedObjectCreated"));
 	}
 
 	/** Translates a call to findOneManagedObjectByType. Uses TranslateUnwindowedSelectClause.asyncCall to generate a use of the FindManagedObject event protocol. */
 	private EPLOutput findOneManagedObjectByType(EsperParser.FunctionCallContext ctx) {
 		addUsingAndChannelSubscription("ManagedObject");
 
-		String reqName = scope.getFile().uniqueVarName("fmo");
-		String fmo = scope.getFile().uniqueVarName("fmo");
+		String reqName = scope.uniqueVarName("fmo");
+		String fmo = scope.uniqueVarName("fmo");
 		EPLOutput asyncBit = new EPLOutput();
 		asyncBit.
 			addLine("integer " + reqName + "_req := Util.generateReqId();").
 			addLine("FindManagedObject " + fmo + " := new FindManagedObject;").
 			addLine(fmo + ".reqId := " + reqName +"_req;").
-			addLine(fmo + ".params[\"type\"] := " + (new TranslateExpr(scope).visit(ctx.arguments().expr(0))).formatOutput() +";").
+			addLine(fmo + ".params[\"type\"] := " + translateExpr.visit(ctx.arguments().expr(0)).formatOutput() +";").
 			addLine("send " + fmo + " to FindManagedObject.SEND_CHANNEL;").
 			addLine();
 
@@ -307,25 +416,25 @@ public class TranslateFunction extends EsperBaseVisitor<EPLOutput> {
 			addLine("on ((").add(receive.toEPLOutput()).add(" and not ").add(terminate.toEPLOutput()).add(") -> ").
 			addLine("   (").add(terminate.toEPLOutput()).add(" and not ").add(receive.toEPLOutput()).add("))");
 
-		scope.getSelect().asyncCall(asyncBit);
-		return new EPLOutput(reqName).add(".managedObject").setExprType(Type.getByEsperName("ManagedObjectCreated"));
+		scope.asyncCall(asyncBit);
+		return new EPLOutput(reqName).add(".managedObject").setExprType(scope.getFile().getTypes().getByEsperName("ManagedObjectCreated"));
 	}
 
 	/** Add required headers and subscribe to channel depending on predefined type for which find request is made*/
 	private void addUsingAndChannelSubscription(String type) {
-		scope.getFile().addUsing("com.apama.cumulocity.Util");
+		scope.addUsing("com.apama.cumulocity.Util");
 		switch(type) {
 			case "Alarm":
-				scope.getFile().addUsing("com.apama.cumulocity.FindAlarm");
-				scope.getFile().addUsing("com.apama.cumulocity.FindAlarmResponse");
-				scope.getFile().addUsing("com.apama.cumulocity.FindAlarmResponseAck");
-				scope.getFile().addChannelSubscription("FindAlarmResponse.SUBSCRIBE_CHANNEL");
+				scope.addUsing("com.apama.cumulocity.FindAlarm");
+				scope.addUsing("com.apama.cumulocity.FindAlarmResponse");
+				scope.addUsing("com.apama.cumulocity.FindAlarmResponseAck");
+				scope.addChannelSubscription("FindAlarmResponse.SUBSCRIBE_CHANNEL");
 				break;
 			case "ManagedObject":
-				scope.getFile().addUsing("com.apama.cumulocity.FindManagedObject");
-				scope.getFile().addUsing("com.apama.cumulocity.FindManagedObjectResponse");
-				scope.getFile().addUsing("com.apama.cumulocity.FindManagedObjectResponseAck");
-				scope.getFile().addChannelSubscription("FindManagedObjectResponse.SUBSCRIBE_CHANNEL");
+				scope.addUsing("com.apama.cumulocity.FindManagedObject");
+				scope.addUsing("com.apama.cumulocity.FindManagedObjectResponse");
+				scope.addUsing("com.apama.cumulocity.FindManagedObjectResponseAck");
+				scope.addChannelSubscription("FindManagedObjectResponse.SUBSCRIBE_CHANNEL");
 				break;
 		}
 	}
@@ -348,8 +457,8 @@ public class TranslateFunction extends EsperBaseVisitor<EPLOutput> {
 		boolean isGetString = expression.startsWith("getString");
 
 		// Get known expression type of Cast() first expression.
-		EPLOutput res = new EPLOutput().add(new TranslateExpr(this.scope).visit(ctx.arguments().expr(0)));
-		if (ESPER_TO_EPL_INTEGER.contains(esperType)) {
+		EPLOutput res = new EPLOutput().add(translateExpr.visit(ctx.arguments().expr(0)));
+		if (CastTypes.ESPER_TO_EPL_INTEGER.contains(esperType)) {
 			if (isGetNumber) {
 				return res.add(".floor()");
 			} else if (isGetString) {
@@ -357,13 +466,13 @@ public class TranslateFunction extends EsperBaseVisitor<EPLOutput> {
 			}
 		}
 
-		if (ESPER_TO_EPL_FLOAT.contains(esperType)) {
+		if (CastTypes.ESPER_TO_EPL_FLOAT.contains(esperType)) {
 			if (isGetString) {
 				return res.add(".toFloat()");
 			}
 		}
 
-		if (ESPER_TO_EPL_STRING.contains(esperType)) {
+		if (CastTypes.ESPER_TO_EPL_STRING.contains(esperType)) {
 			if (!isGetString) {
 				// Avoid string to string
 				return res.add(".toString()");
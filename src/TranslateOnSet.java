@@ -27,20 +27,21 @@ public class TranslateOnSet extends EsperBaseVisitor<EPLOutput> {
 
 		EPLOutput onSetInput = visitOnSetInput(ctx.onSetInput());
 		scope.addVariableToLocalScope(coassignee, inputType);
-		scope.getFile().addUsing(inputType);
-		scope.getFile().addChannelSubscription(inputType);
+		scope.addUsing(inputType);
+		scope.addChannelSubscription(inputType);
 
 		EPLOutput setOperations = new EPLOutput();
 		for ( int i=0; i < ctx.identifier().size(); i++) {
-			setOperations.addLine(new EPLOutput().add(ctx.identifier().get(i).getText()).add(" := ").add(new TranslateExpr(this.scope).visitExpr(ctx.expr().get(i))).add(";"));
+			EPLOutput value = new TranslateExpr(this.scope).visitExpr(ctx.expr().get(i));
+			setOperations.addLine(new EPLCode.Assignment(new EPLOutput().add(ctx.identifier().get(i).getText()), EPLCode.Expr.of(value)).toEPLOutput());
 		}
 
 		EPLOutput ret = setOperations;
 
 		UtilityAction filterAction = InputType.getFilterActionForInputStreamType(inputType);
 		if (filterAction != null) {
-			scope.getFile().addEPLUtilityAction(filterAction);
-			ret = new EPLOutput().addLine("if (").add(filterAction.getName() + "(").add(coassignee).add(")").add(")").addBlock(ret);
+			scope.addEPLUtilityAction(filterAction);
+			ret = new EPLCode.If(new EPLCode.Text(filterAction.getName() + "(" + coassignee + ")"), ret).toEPLOutput();
 		}
 
 		ret = onSetInput.addBlock(ret);
@@ -52,7 +53,7 @@ public class TranslateOnSet extends EsperBaseVisitor<EPLOutput> {
 	public EPLOutput visitOnSetInput(EsperParser.OnSetInputContext ctx) {
 		EPLOutput ret = new EPLOutput();
 		if(ctx.typeName() != null) {
-			this.inputType = Type.getByEsperName(ctx.typeName());
+			this.inputType = scope.getFile().getTypes().getByEsperName(ctx.typeName());
 			if(ctx.coassignee == null){
 				// If coassignee not assigned, then create one
 				this.coassignee = this.inputType.getClassName().substring(0, 1).toLowerCase();
@@ -7,6 +7,8 @@
  */
 package com.apama.e2a;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 import java.util.LinkedList;
 
@@ -38,24 +40,62 @@ public class TranslatePattern extends EsperBaseVisitor<EPLOutput>  {
 	/**
 	 * Translates any parsed patterns that are on lower levels of the parse tree
 	 * (i.e. any patterns that are not the highest level pattern in the parse tree )
+	 *
+	 * Long chains of operators and deeply nested parentheses are translated with a stack of our own rather than by
+	 * recursion, from left to right, as for TranslateExpr.visitExpr.
 	 * @See visitPattern
 	 */
-	public EPLOutput translatePattern(EsperParser.PatternContext ctx){
-		if(ctx.every != null) {
-			return EPLOutput.cannotTranslate(ctx, "Patterns with a nested 'every'");
-		} else if(ctx.operator != null) {
+	public EPLOutput translatePattern(EsperParser.PatternContext root){
+		// Patterns still to translate, and whether each one's sub-patterns have been translated yet
+		Deque<EsperParser.PatternContext> todo = new ArrayDeque<EsperParser.PatternContext>();
+		Deque<Boolean> subPatternsTranslated = new ArrayDeque<Boolean>();
+		// Translations of the sub-patterns of the patterns in todo, the right-most on top
+		Deque<EPLOutput> translated = new ArrayDeque<EPLOutput>();
+		todo.push(root);
+		subPatternsTranslated.push(false);
+		while (!todo.isEmpty()) {
+			EsperParser.PatternContext ctx = todo.pop();
+			if (subPatternsTranslated.pop()) {
+				translated.push(translateCombinedPattern(ctx, translated));
+			} else if (ctx.every == null && (ctx.operator != null || ctx.not != null || ctx.enclosed != null)) {
+				todo.push(ctx);
+				subPatternsTranslated.push(true);
+				if (ctx.operator != null) {
+					todo.push(ctx.pattern(1));
+					subPatternsTranslated.push(false);
+				}
+				todo.push(ctx.pattern(0));
+				subPatternsTranslated.push(false);
+			} else {
+				translated.push(translateSinglePattern(ctx));
+			}
+		}
+		return translated.pop();
+	}
+
+	/** Translate a pattern made of other patterns, given their translations on top of translated (which are taken off it) */
+	private EPLOutput translateCombinedPattern(EsperParser.PatternContext ctx, Deque<EPLOutput> translated) {
+		if(ctx.operator != null) {
 			// Translates patterns that consist of binary operators ('->', 'and', ...)
-			return translatePattern(ctx.pattern(0)).add(" ").add(ctx.operator).add(" ").add(translatePattern(ctx.pattern(1)));
+			EPLOutput rhs = translated.pop();
+			return translated.pop().add(" ").add(ctx.operator).add(" ").add(rhs);
 		} else if(ctx.not != null) {
-			return EPLOutput.cannotTranslate(ctx, "Patterns using a 'not' operator").add(translatePattern(ctx.pattern(0)));
-		} else if (ctx.enclosed != null) {
-			return new EPLOutput().add("(").add(translatePattern(ctx.pattern(0))).add(")");
+			return EPLOutput.cannotTranslate(ctx, "Patterns using a 'not' operator").add(translated.pop());
+		} else { // ctx.enclosed != null
+			return new EPLOutput().add("(").add(translated.pop()).add(")");
+		}
+	}
+
+	/** Translate a pattern that isn't made of other patterns that we translate */
+	private EPLOutput translateSinglePattern(EsperParser.PatternContext ctx){
+		if(ctx.every != null) {
+			return EPLOutput.cannotTranslate(ctx, "Patterns with a nested 'every'");
 		} else if(ctx.eventFilter != null) {
 			// Add relevant using statements and channel subscriptions and add the variable to scope, 
 			// as this will improve the translation in other places
-			Type inputType = Type.getByEsperName(ctx.eventFilter);
-			scope.getFile().addUsing(inputType);
-			scope.getFile().addChannelSubscription(inputType);
+			Type inputType = scope.getFile().getTypes().getByEsperName(ctx.eventFilter);
+			scope.addUsing(inputType);
+			scope.addChannelSubscription(inputType);
 			if(ctx.coassignee != null){
 				scope.addVariableToLocalScope(ctx.coassignee.getText(), inputType);
 			}
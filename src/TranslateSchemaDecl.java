@@ -28,17 +28,18 @@ public class TranslateSchemaDecl extends EsperBaseVisitor<EPLOutput> {
 		// Map of member field name to the member type.
 		Map<String, Type> membersMap = new HashMap<String, Type>();
 		for(int i = 0; i < ctx.fieldNames.size(); i++) {
-			Type t = Type.getByEsperName(ctx.fieldTypes.get(i));
-			scope.getFile().addUsing(t);
+			Type t = scope.getFile().getTypes().getByEsperName(ctx.fieldTypes.get(i));
+			scope.addUsing(t);
 			members.addLine(t.getEPLName()).add(" ").add(ctx.fieldNames.get(i)).add(";");
 			String fieldName = ctx.fieldNames.get(i).getText();
 			membersMap.put(fieldName, t);
 			// Add warning for fields which are not exact mapping. Eg : BigDecimal to float
-			if(Misc.APPROXIMATE_TYPE_MATCHING.containsKey(t.getNameInEsper())) {
-				members.addWarning(Misc.APPROXIMATE_TYPE_MATCHING.get(t.getNameInEsper()));
+			String approximateTypeWarning = Misc.getApproximateTypeWarning(t.getNameInEsper());
+			if(approximateTypeWarning != null) {
+				members.addWarning(approximateTypeWarning);
 			}
 		}
-		Type.declType(new Type.CustomSchema(ctx.schemaName, membersMap));
+		scope.getFile().getTypes().declType(new Type.CustomSchema(ctx.schemaName, membersMap));
 
 		return new EPLOutput().add("event ").add(ctx.schemaName).addBlock(members);
 	}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import com.apama.e2a.EsperParser.CreateExpressionContext;
+import com.apama.e2a.EsperParser.CreateVariableContext;
+import com.apama.e2a.EsperParser.CreateWindowContext;
+
+/** Translates a single top-level Esper statement, in the scope of that statement - see TranslateEsperFile for how its effects on the rest of the file are applied */
+public class TranslateStatement extends EsperBaseVisitor<EPLOutput> {
+	public TranslateStatement(Scope scope) {
+		this.scope = scope;
+	}
+
+	private Scope scope;
+
+	@Override
+	/** Translates each part of the statement in turn. Returns null if there's nothing to translate. */
+	public EPLOutput visitStatement(EsperParser.StatementContext s) {
+		EPLOutput ret = null;
+		for (int i = 0; i < s.getChildCount(); i++) {
+			ParseTree i_ = s.getChild(i);
+			if (!isSemicolon(i_)) {
+				if (ret == null) ret = new EPLOutput();
+				EPLOutput e = this.visit(s.getChild(i));
+				if (e == null) {
+					ret.addLine(EPLOutput.cannotTranslate(s));
+				} else {
+					ret.addLine(e);
+				}
+			}
+		}
+		return ret;
+	}
+
+	/** Returns true if t is just a semicolon - without getting the text of a whole part of the statement to find out */
+	private static boolean isSemicolon(ParseTree t) {
+		return t.getSourceInterval().length() == 1 && t.getText().equals(";");
+	}
+
+	@Override
+	public EPLOutput visitCreateWindow(CreateWindowContext ctx) {
+		return EPLOutput.cannotTranslate(ctx, "Create window statement");
+	}
+
+	@Override
+	/** We don't currently support creating variables/constants */
+	public EPLOutput visitCreateVariable(CreateVariableContext ctx) {
+		return new TranslateCreateVariable(this.scope).visitCreateVariable(ctx);
+	}
+
+	@Override
+	/** We don't currently support creating expressions */
+	public EPLOutput visitCreateExpression(CreateExpressionContext ctx) {
+		return EPLOutput.cannotTranslate(ctx, "Custom expressions", false);
+	}
+
+	@Override
+	/** @see TranslateOnSet */
+	public EPLOutput visitOnSet(EsperParser.OnSetContext ctx) {
+		return new TranslateOnSet(this.scope).visitOnSet(ctx);
+	}
+
+	@Override
+	/** @see TranslateUnwindowedSelectClause */
+	public EPLOutput visitSelectClause(EsperParser.SelectClauseContext ctx) {
+		if (ctx.context != null) {
+			return EPLOutput.cannotTranslate(ctx, "Select statement with context");
+		} else if (new ClassifySelectClause().visit(ctx)) {
+			return EPLOutput.cannotTranslate(ctx, "Select statement using a window");
+		} else {
+			return new TranslateUnwindowedSelectClause(this.scope).visitSelectClause(ctx);
+		}
+	}
+
+	@Override
+	/** @see TranslateAnnotation */
+	public EPLOutput visitStatementAnnotation(EsperParser.StatementAnnotationContext ctx) {
+		return new TranslateAnnotation().visit(ctx);
+	}
+
+	@Override
+	/** @see TranslateSchemaDecl */
+	public EPLOutput visitSchemaDecl(EsperParser.SchemaDeclContext ctx) {
+		return new TranslateSchemaDecl(this.scope).visitSchemaDecl(ctx);
+	}
+}
@@ -41,7 +41,7 @@ public class TranslateUnwindowedSelectClause extends EsperBaseVisitor<EPLOutput>
 	 */
 	public EPLOutput visitSelectClause(EsperParser.SelectClauseContext ctx) {
 		this.outputType = outputType(ctx);
-		scope.getFile().addUsing(outputType);
+		scope.addUsing(outputType);
 		this.inputType = new Type.Unknown("???");
 
 		// Setup the listener for this statement's input
@@ -57,9 +57,9 @@ public class TranslateUnwindowedSelectClause extends EsperBaseVisitor<EPLOutput>
 			patternsEplOut = visit(ctx.insertInput().get(0));
 		}
 		this.scope.addVariableToLocalScope(coassignee, inputType);
-		this.eventExpression = new EventExpression(inputType.nameInEPL().formatOutput(), coassignee);
-		scope.getFile().addUsing(inputType);
-		scope.getFile().addChannelSubscription(inputType);
+		this.eventExpression = new EventExpression(inputType.getEPLName(), coassignee);
+		scope.addUsing(inputType);
+		scope.addChannelSubscription(inputType);
 
 		// Construct and send the output event
 		EPLOutput generateOutput = new EPLOutput();
@@ -82,7 +82,7 @@ public class TranslateUnwindowedSelectClause extends EsperBaseVisitor<EPLOutput>
 		}
 
 		// Any sort of discrimination around the input before we go on to generate output
-		List<EPLOutput> nestedFiltering = new ArrayList<EPLOutput>();
+		EPLOutput ret = generateOutput;
 		EPLOutput patternWhereTODO = new EPLOutput();
 		if (ctx.whereClause() != null) {
 			TranslateWhereClause translateWhere = new TranslateWhereClause(scope, ctx.whereClause().condition, eventExpression);
@@ -93,17 +93,12 @@ public class TranslateUnwindowedSelectClause extends EsperBaseVisitor<EPLOutput>
 				if(ctx.insertInput(0).pattern() != null && ctx.insertInput(0).pattern().every == null) {
 					ifStatement.addWarning("This translation of the 'where' clause is only correct inside an 'on all'");
 				}
-				ifStatement.add("if (").add(translateWhere.getNestedIf()).add(")");
-				nestedFiltering.add(ifStatement);
+				ret = ifStatement.add(new EPLCode.If(translateWhere.getNestedIfCondition(), ret).toEPLOutput());
 			}
 		}
-		nestedFiltering.add(this.filterEventsOnInputStreamType());
-
-		EPLOutput ret = generateOutput;
-		for(EPLOutput i : nestedFiltering) {
-			if(!i.isEmpty()) {
-				ret = i.addBlock(ret);
-			}
+		EPLCode.Expr inputStreamFilter = this.filterEventsOnInputStreamType();
+		if (inputStreamFilter != null) {
+			ret = new EPLCode.If(inputStreamFilter, ret).toEPLOutput();
 		}
 		ret = this.wrapAsyncConsumer(ret);
 
@@ -124,7 +119,7 @@ public class TranslateUnwindowedSelectClause extends EsperBaseVisitor<EPLOutput>
 		if(ctx.insertTo() == null) {
 			return new Type.Unknown("???");
 		} else {
-			return Type.getByEsperName(ctx.insertTo().output);
+			return scope.getFile().getTypes().getByEsperName(ctx.insertTo().output);
 		}
 	}
 
@@ -140,7 +135,7 @@ public class TranslateUnwindowedSelectClause extends EsperBaseVisitor<EPLOutput>
 			inputListenerSetupTodos.addLine(EPLOutput.cannotTranslate("Unidirectional keyword"));
 		}
 		if(ctx.inputStream != null) {
-			this.inputType = Type.getByEsperName(ctx.inputStream);
+			this.inputType = scope.getFile().getTypes().getByEsperName(ctx.inputStream);
 			if(ctx.coassignee == null){
 				// If coassignee not assigned, then create one
 				this.coassignee = this.inputType.getClassName().substring(0, 1).toLowerCase();
@@ -194,13 +189,11 @@ public class TranslateUnwindowedSelectClause extends EsperBaseVisitor<EPLOutput>
 					&& (Scope.COASSIGNEE_NAME + ".address").equals(eplOut));
 			}
 
-			outAssignment.add(" := ");
-			String rhs = new TranslateExpr(this.scope).visit(ctx.expr()).formatOutput();
+			EPLOutput rhs = new TranslateExpr(this.scope).visit(ctx.expr());
 			if (splitCommaSepStr) {
-				rhs = "\",\".split(" + rhs + ")";
+				rhs = new EPLOutput("\",\".split(").add(rhs).add(")");
 			}
-			outAssignment.add(rhs).add(";");
-			return outAssignment;
+			return new EPLCode.Assignment(outAssignment, EPLCode.Expr.of(rhs)).toEPLOutput();
 		}
 	}
 
@@ -234,22 +227,22 @@ public class TranslateUnwindowedSelectClause extends EsperBaseVisitor<EPLOutput>
 	/** Check if we are creating or updating object in C8Y.
 	Esper has two separate input streams for Created/Updated. 
 	Listeners in EPL will pick up events in both updated/created scenarios. 
-	Creates an if condition to filter out irrelevant events. */
-	private EPLOutput filterEventsOnInputStreamType() {
+	Returns the condition for an if to filter out irrelevant events, or null if there's no need. */
+	private EPLCode.Expr filterEventsOnInputStreamType() {
 		UtilityAction filterAction = InputType.getFilterActionForInputStreamType(inputType);
 		if (filterAction != null) {
-			scope.getFile().addEPLUtilityAction(filterAction);
-			return new EPLOutput().addLine("if (").add(filterAction.getName() + "(").add(coassignee).add(")").add(")");
+			scope.addEPLUtilityAction(filterAction);
+			return new EPLCode.Text(filterAction.getName() + "(" + coassignee + ")");
 		}
 
-		return new EPLOutput();
+		return null;
 	}
 
 	/** Adds a utility action to the EPL translation for the insert statement. This action sends a request to Cumulocity to delete an object of the type defined by the output stream of the statement. The action takes a single parameter - the id of the object to be deleted. */
 	private String generateEPLDeleteUtilityAction(){
 		String type = outputType.getClassName().replace("Delete","");
 		String name = "delete"+type;
-		String path = Misc.C8Y_REST_INTERFACE_PATHS.get(type)+"/";
+		String path = Misc.getC8yRestInterfacePath(type)+"/";
 		EPLOutput actionBody = new EPLOutput()
 			.add("GenericRequest deleteRequest := new GenericRequest;")
 			.addLine("deleteRequest.reqId := Util.generateReqId();")
@@ -258,9 +251,9 @@ public class TranslateUnwindowedSelectClause extends EsperBaseVisitor<EPLOutput>
 			.addLine("send deleteRequest to GenericRequest.SEND_CHANNEL;");
 		Map<String, String> params = new HashMap<String, String>();
 		params.put("id", "string");
-		scope.getFile().addEPLUtilityAction(new UtilityAction(name, actionBody, params, "", "Deletes "+type+" with given id from Cumulocity."));
+		scope.addEPLUtilityAction(new UtilityAction(name, actionBody, params, "", "Deletes "+type+" with given id from Cumulocity."));
 		// Utility method uses Util package
-		scope.getFile().addUsing("com.apama.cumulocity.Util");
+		scope.addUsing("com.apama.cumulocity.Util");
 		return name;
 	}
 }
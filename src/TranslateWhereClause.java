@@ -7,13 +7,18 @@
  */
 package com.apama.e2a;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public class TranslateWhereClause extends EsperBaseVisitor<EPLOutput> {
 
 	private EsperParser.ExprContext conditionExprCtx;
 	private EventExpression eventExpression;
 	private TranslateExpr translateExpr;
 	private Scope scope;
-	private EPLOutput nestedIfExpressionEPL = new EPLOutput();
+	/** The conditions that go in the nested if rather than the event expression, in reverse order */
+	private List<EPLCode.Expr> nestedIfConditions = new ArrayList<EPLCode.Expr>();
 	
 	public TranslateWhereClause(Scope scope, EsperParser.ExprContext condition, EventExpression eventExpression) {
 		this.scope = scope;
@@ -58,17 +63,17 @@ public class TranslateWhereClause extends EsperBaseVisitor<EPLOutput> {
 			if (isBooleanWithComparison) {
 				boolean constraintSuccessfullyAdded = eventExpression.addConstraint(expressionCtx.expr(1), scope);
 				if (!constraintSuccessfullyAdded){
-					addToNestedIf(translateExpr.visit(expressionCtx.expr(1)));
+					addToNestedIf(translateExpr.translate(expressionCtx.expr(1)));
 				}
 			} else if (isComparison) {
 				boolean constraintSuccessfullyAdded = eventExpression.addConstraint(expressionCtx, scope);
 				if (!constraintSuccessfullyAdded){
-					addToNestedIf(translateExpr.visit(expressionCtx));
+					addToNestedIf(translateExpr.translate(expressionCtx));
 				}
 			} else if (isBoolean) {
 				// Cannot assimilate constraint to event expression.
 				// But can be include in nested if instead.
-				addToNestedIf(translateExpr.visit(expressionCtx.expr(1)));
+				addToNestedIf(translateExpr.translate(expressionCtx.expr(1)));
 			} else {
 				 // Expression does not match supported pattern for creating event expression
 				putWholeWhereClauseInNestedIf();
@@ -79,27 +84,17 @@ public class TranslateWhereClause extends EsperBaseVisitor<EPLOutput> {
 		if (expressionCtx.expr(0) != null || !isComparison) {
 			// If there are any conditions left over after the while loop, 
 			// add to the nested if statement
-			addToNestedIf(translateExpr.visit(expressionCtx));
+			addToNestedIf(translateExpr.translate(expressionCtx));
 		}
 		stripNestedIfParentheses();
 	}
 
 	/**
 	 * Add to the sequence of conditions included in the nested if (rather than
-	 * event expression)
+	 * event expression). The conditions are found from right to left, so this goes before the others.
 	 */
-	private void addToNestedIf(final String condition) {
-		if(nestedIfExpressionEPL.isEmpty()){
-			nestedIfExpressionEPL.add(condition);
-		} else {
-			nestedIfExpressionEPL = new EPLOutput(condition).add(" and ").add(nestedIfExpressionEPL);
-		}
-		
-	}
-
-	/** @see addToNestedIf(String condition) */
 	private void addToNestedIf(final EPLOutput condition) {
-		addToNestedIf(condition.formatOutput());
+		nestedIfConditions.add(EPLCode.Expr.of(condition));
 	}
 
 	/**
@@ -108,20 +103,26 @@ public class TranslateWhereClause extends EsperBaseVisitor<EPLOutput> {
 	 */
 	private void putWholeWhereClauseInNestedIf(){
 		eventExpression.clearEventFieldConstraints();
-		nestedIfExpressionEPL = new EPLOutput().add(translateExpr.visit(this.conditionExprCtx));
+		nestedIfConditions.clear();
+		addToNestedIf(translateExpr.translate(this.conditionExprCtx));
 		stripNestedIfParentheses();
 	}
 
-	/** If nestedIfExpressionEPL is enclosed by (redundant) parenteses, then remove them */
+	/** If the nested if is a single condition enclosed by (redundant) parentheses, then remove them */
 	private void stripNestedIfParentheses(){
-		String ifString = nestedIfExpressionEPL.formatOutput();
-		if (ifString.startsWith("(") && ifString.endsWith(")")) {
-			nestedIfExpressionEPL = new EPLOutput(ifString.substring(1, ifString.length() - 1));
+		if (nestedIfConditions.size() == 1 && nestedIfConditions.get(0) instanceof EPLCode.Parenthesised) {
+			nestedIfConditions.set(0, ((EPLCode.Parenthesised) nestedIfConditions.get(0)).getEnclosed());
 		}
 	}
 
-	public EPLOutput getNestedIf() {
-		return nestedIfExpressionEPL;
+	/** The condition for the nested if - all of the conditions that aren't in the event expression */
+	public EPLCode.Expr getNestedIfCondition() {
+		if (nestedIfConditions.size() == 1) {
+			return nestedIfConditions.get(0);
+		}
+		List<EPLCode.Expr> inOrder = new ArrayList<EPLCode.Expr>(nestedIfConditions);
+		Collections.reverse(inOrder);
+		return new EPLCode.And(inOrder);
 	}
 
 	/**
@@ -130,6 +131,6 @@ public class TranslateWhereClause extends EsperBaseVisitor<EPLOutput> {
 	 * some/all conditions)
 	 */
 	public boolean requiresNestedIf() {
-		return !nestedIfExpressionEPL.isEmpty();
+		return !nestedIfConditions.isEmpty();
 	}
 }
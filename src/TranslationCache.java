@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * On-disk cache of translations, so that re-translating a large tree of Esper files only does the work for the files
+ * that changed.
+ *
+ * Entries are content-addressed: the key is a SHA-256 hash of the Esper source bytes, the file name (which names the
+ * monitor if there's no module declaration), the version of the tool and the translation options, so an entry can never be stale - a change to any of those just gives a different key. Each
+ * entry holds the formatted EPL. Entries are written atomically, so several processes can share a cache directory.
+ */
+class TranslationCache {
+
+	/** Name of the file in the cache directory listing the hits and misses of the most recent run */
+	static final String MANIFEST_FILE_NAME = "manifest.tsv";
+
+	private final Path dir;
+
+	/** Everything other than the source that affects the translation */
+	private final String keyPrefix;
+
+	TranslationCache(Path dir, boolean ignoreComments, boolean recoverFromSyntaxErrors) throws IOException {
+		this.dir = dir;
+		this.keyPrefix = toolVersion() + "\n" + "ignoreComments=" + ignoreComments + "\n" + "recover=" + recoverFromSyntaxErrors + "\n";
+		Files.createDirectories(dir);
+	}
+
+	/** The cache key for the given Esper source bytes, from a file with the given name (without any path prefix) */
+	String keyFor(String esperFileName, byte[] esperSource) {
+		MessageDigest sha = BatchFiles.sha256();
+		sha.update((keyPrefix + "fileName=" + esperFileName + "\n").getBytes(StandardCharsets.UTF_8));
+		StringBuilder ret = new StringBuilder();
+		for (byte b : sha.digest(esperSource)) {
+			ret.append(String.format("%02x", b));
+		}
+		return ret.toString();
+	}
+
+	/** Returns the cached EPL for the key, or null if there isn't any */
+	String get(String key) throws IOException {
+		try {
+			return new String(Files.readAllBytes(entryPath(key)), StandardCharsets.UTF_8);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/** Store the EPL for the key */
+	void put(String key, String epl) throws IOException {
+		Path entry = entryPath(key);
+		Files.createDirectories(entry.getParent());
+		Path tmp = Files.createTempFile(entry.getParent(), key, ".tmp");
+		try {
+			Files.write(tmp, epl.getBytes(StandardCharsets.UTF_8));
+			try {
+				Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/** Entries are spread over 256 subdirectories to keep directories small */
+	private Path entryPath(String key) {
+		return dir.resolve(key.substring(0, 2)).resolve(key.substring(2) + ".mon");
+	}
+
+	/** One line of the manifest */
+	static String manifestLine(boolean hit, String key, Path input) {
+		return (hit ? "hit" : "miss") + "\t" + key + "\t" + input;
+	}
+
+	/** Replace the manifest with the lines for this run, with a header saying how many hits and misses there were */
+	void writeManifest(List<String> lines, int hits, int misses) throws IOException {
+		List<String> manifest = new ArrayList<String>();
+		manifest.add(String.format("# %d hits, %d misses", hits, misses));
+		manifest.add("# result\tkey\tinput");
+		manifest.addAll(lines);
+		Path tmp = Files.createTempFile(dir, MANIFEST_FILE_NAME, ".tmp");
+		Files.write(tmp, manifest, StandardCharsets.UTF_8);
+		Files.move(tmp, dir.resolve(MANIFEST_FILE_NAME), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Identifies the version of the tool, so that a new version doesn't use translations made by an old one.
+	 * A development build has no version number, so use the location and timestamp of the code instead.
+	 */
+	private static String toolVersion() {
+		String version = TranslationCache.class.getPackage().getImplementationVersion();
+		if (version != null) {
+			return version;
+		}
+		try {
+			File code = Paths.get(TranslationCache.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toFile();
+			if (code.isDirectory()) {
+				code = new File(code, TranslationCache.class.getName().replace('.', File.separatorChar) + ".class");
+			}
+			return "dev " + code + " " + code.lastModified();
+		} catch (URISyntaxException | RuntimeException e) {
+			return "dev " + System.nanoTime(); // can't tell which build this is, so don't share entries with any other run
+		}
+	}
+}
@@ -0,0 +1,571 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.CommonTokenFactory;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.UnbufferedTokenStream;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.IntervalSet;
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Translates Esper to Apama EPL, for use by anything that embeds the tool.
+ *
+ * An engine is immutable and can be shared by any number of threads. Each translation is done on the calling thread,
+ * unless the Esper is nested too deeply for its stack, in which case it's done again on a TranslationThread. Each thread
+ * keeps its own lexer and parser and reuses them for every translation it does, and the ANTLR DFA cache that the
+ * generated lexer and parser build up is shared by all of them, so translations get faster as the process warms up.
+ */
+public class TranslationEngine implements AutoCloseable {
+
+	/* If true, esper comments will be ignored */
+	private final boolean ignoreComments;
+
+	/* If true, statements that don't parse are replaced with a TODO rather than failing the whole translation */
+	private final boolean recoverFromSyntaxErrors;
+
+	/* Translations of statements shared by every translation this engine does, or null */
+	private final StatementCache statementCache;
+
+	/* Pool for translating the statements of a file in parallel, or null to translate them one by one */
+	private final ExecutorService statementPool;
+
+	public TranslationEngine(boolean ignoreComments) {
+		this(ignoreComments, false);
+	}
+
+	/**
+	 * Create an engine that can carry on past syntax errors.
+	 * @param recoverFromSyntaxErrors if true, a statement that doesn't parse is skipped (up to the next ';' that isn't in
+	 * brackets) and replaced with a TODO comment; otherwise the first syntax error throws an EsperSyntaxException
+	 */
+	public TranslationEngine(boolean ignoreComments, boolean recoverFromSyntaxErrors) {
+		this(ignoreComments, recoverFromSyntaxErrors, null);
+	}
+
+	/**
+	 * Create an engine that reuses the translations of statements that appear in more than one file (or more than once in a file).
+	 * @param statementCache cache that may be shared with other engines, or null to translate every statement
+	 */
+	TranslationEngine(boolean ignoreComments, boolean recoverFromSyntaxErrors, StatementCache statementCache) {
+		this(ignoreComments, recoverFromSyntaxErrors, statementCache, null);
+	}
+
+	/**
+	 * Create an engine that translates the statements of each file in parallel, which is worthwhile for large files
+	 * when the engine isn't already translating several files at once. The EPL is the same whatever the number of threads.
+	 * The threads are kept until the engine is closed.
+	 * @param statementThreads number of threads to translate statements on, or 1 to translate them one by one
+	 */
+	public TranslationEngine(boolean ignoreComments, boolean recoverFromSyntaxErrors, int statementThreads) {
+		this(ignoreComments, recoverFromSyntaxErrors, null, statementThreads > 1 ? Executors.newFixedThreadPool(statementThreads, TranslationThread.factory("e2a-statement")) : null);
+	}
+
+	/** @throws IllegalStateException if the FunctionTranslators on the classpath can't be used */
+	private TranslationEngine(boolean ignoreComments, boolean recoverFromSyntaxErrors, StatementCache statementCache, ExecutorService statementPool) {
+		TranslateFunction.checkFunctionTranslators();
+		this.ignoreComments = ignoreComments;
+		this.recoverFromSyntaxErrors = recoverFromSyntaxErrors;
+		this.statementCache = statementCache;
+		this.statementPool = statementPool;
+	}
+
+	/** Stop the threads that translate statements in parallel, if there are any, once they've finished what they're doing */
+	@Override
+	public void close() {
+		if (statementPool != null) {
+			statementPool.shutdown();
+		}
+	}
+
+	/**
+	 * Translate some Esper source code.
+	 * @throws EsperSyntaxException if the Esper doesn't parse, unless this engine recovers from syntax errors
+	 * @param esper the Esper source
+	 * @param esperFileName name of the file it came from (without any path prefix), used to name the monitor if the Esper has no module declaration
+	 */
+	public Result translate(CharSequence esper, String esperFileName) {
+		return translate(CharStreams.fromString(esper.toString(), esperFileName), esperFileName);
+	}
+
+	/** Translate Esper source code read from a Reader - see translate(CharSequence, String) */
+	public Result translate(Reader esper, String esperFileName) throws IOException {
+		return translate(CharStreams.fromReader(esper, esperFileName), esperFileName);
+	}
+
+	/** Translate an Esper file (which must be UTF-8) */
+	public Result translate(Path esperFile) throws IOException {
+		return translate(CharStreams.fromPath(esperFile), esperFile.getFileName().toString());
+	}
+
+	/** Translate on this thread, or on a TranslationThread if it's too deeply nested for this one */
+	private Result translate(CharStream esperStream, String esperFileName) {
+		try {
+			return translateOnThisThread(esperStream, esperFileName);
+		} catch (StackOverflowError e) {
+			// Only thrown on threads that aren't TranslationThreads (see EsperSyntaxException.nestedTooDeeply), and nothing
+			// that this translation did is kept, so it can simply be done again from the start
+			esperStream.seek(0);
+			return TranslationThread.call(() -> translateOnThisThread(esperStream, esperFileName));
+		}
+	}
+
+	private Result translateOnThisThread(CharStream esperStream, String esperFileName) {
+		final EsperLexer lexer = LEXER.get();
+		lexer.setInputStream(esperStream);
+		lexer.lastTokenWasOnSameLine = false;
+
+		TranslateEsperFile translateEsperFile = new TranslateEsperFile(esperFileName, new TypeRegistry(), statementCache);
+		if (ignoreComments) {
+			lexer.setTokenFactory(CommonTokenFactory.DEFAULT);
+		} else {
+			lexer.setTokenFactory(new CustomCommonTokenFactory(translateEsperFile, lexer));
+		}
+
+		final CommonTokenStream tokens = new CommonTokenStream(lexer);
+		final EsperParser parser = PARSER.get();
+		parser.setInputStream(tokens);
+		final boolean[] llFallback = { false };
+		try {
+			EsperParser.EsperFileContext tree;
+			try {
+				tree = parse(parser, tokens);
+			} catch (EsperSyntaxException e) {
+				if (!recoverFromSyntaxErrors) throw e;
+				tree = null;
+			}
+			llFallback[0] = parser.getInterpreter().getPredictionMode() == PredictionMode.LL;
+			if (tree != null) {
+				translateEsperFile.translateStatements(tree, statementPool);
+			} else {
+				// Parse it again a statement at a time, so that the statements that do parse can be translated
+				tokens.seek(0);
+				translateIncrementally(translateEsperFile, parser, tokens, null, false, llFallback);
+			}
+		} finally {
+			// Don't keep this input alive until the thread's next translation
+			parser.setInputStream(null);
+			lexer.setInputStream(null);
+		}
+		return new Result(translateEsperFile, llFallback[0]);
+	}
+
+	/**
+	 * Translate Esper source code a statement at a time, writing the EPL to out, for input that is too big to hold in memory.
+	 * Only the statement being translated and what later statements need to know (schemas, variables, usings and so on)
+	 * are kept in memory - the translated statements are kept in temporary files until they can be written out.
+	 * The EPL is the same as translate(Reader, String) would give. As the input can't be read again, this is always done
+	 * on a TranslationThread - which costs a new thread unless the calling thread is one.
+	 * @return the number of TODOs in the EPL
+	 */
+	public int translateStreaming(Reader esper, String esperFileName, Writer out) throws IOException {
+		return TranslationThread.call(() -> translateStreamingOnThisThread(esper, esperFileName, out));
+	}
+
+	/** Like translateStreaming, but on this thread, which should be a TranslationThread */
+	private int translateStreamingOnThisThread(Reader esper, String esperFileName, Writer out) throws IOException {
+		final ReaderCharStream chars = new ReaderCharStream(esper, esperFileName);
+		final EsperLexer lexer = LEXER.get();
+		lexer.setInputStream(chars);
+		lexer.lastTokenWasOnSameLine = false;
+
+		TranslateEsperFile translateEsperFile = new TranslateEsperFile(esperFileName, new TypeRegistry(), statementCache);
+		// The text of each token must be copied, as the characters are discarded after each statement
+		if (ignoreComments) {
+			lexer.setTokenFactory(new CommonTokenFactory(true));
+		} else {
+			lexer.setTokenFactory(new CustomCommonTokenFactory(translateEsperFile, lexer, true));
+		}
+
+		final UnbufferedTokenStream<Token> tokens = new UnbufferedTokenStream<Token>(new DefaultChannelTokenSource(lexer));
+		final EsperParser parser = PARSER.get();
+		parser.setInputStream(tokens);
+		final boolean[] llFallback = { false };
+		parseCount.incrementAndGet();
+		try {
+			translateIncrementally(translateEsperFile, parser, tokens, chars, true, llFallback);
+			EPLWriter writer = EPLWriter.to(out);
+			translateEsperFile.writeTo(writer);
+			return writer.todosWritten;
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			if (llFallback[0]) llFallbackCount.incrementAndGet();
+			translateEsperFile.deleteSpools();
+			parser.setInputStream(null);
+			lexer.setInputStream(null);
+		}
+	}
+
+	/**
+	 * The outcome of a translation: the EPL, plus anything the user should know about it.
+	 * The EPL is only put together when it's asked for, so writeTo can stream it without holding all of it in memory.
+	 */
+	public static class Result {
+		private final TranslateEsperFile translation;
+		private final boolean llFallback;
+		/** @see getEPL */
+		private EPLOutput epl;
+		/** @see getTodoCount, or -1 if it's not known yet */
+		private int todoCount = -1;
+
+		private Result(TranslateEsperFile translation, boolean llFallback) {
+			this.translation = translation;
+			this.llFallback = llFallback;
+		}
+
+		/** The translated EPL */
+		public synchronized EPLOutput getEPL() {
+			if (epl == null) {
+				epl = translation.getOutput();
+			}
+			return epl;
+		}
+
+		/** The translated EPL as a String */
+		public String getEPLText() {
+			return getEPL().formatOutput();
+		}
+
+		/** Write the translated EPL to out, exactly as getEPLText would return it */
+		public synchronized void writeTo(Writer out) throws IOException {
+			if (epl != null) {
+				epl.writeTo(out);
+			} else {
+				EPLWriter writer = EPLWriter.to(out);
+				translation.writeTo(writer);
+				todoCount = writer.todosWritten;
+			}
+		}
+
+		/** Every line of the EPL that contains a TODO or warning comment, prefixed by its line number */
+		public List<String> getDiagnostics() {
+			return Collections.unmodifiableList(getEPL().findDiagnostics());
+		}
+
+		/** Number of places where something could not be translated */
+		public synchronized int getTodoCount() {
+			if (todoCount < 0) {
+				todoCount = getEPL().countTodos();
+			}
+			return todoCount;
+		}
+
+		/** Number of places where the translation may not behave the same as the Esper */
+		public int getWarningCount() {
+			return getEPL().countWarnings();
+		}
+
+		/** True if the Esper could only be parsed with the slower full LL parse */
+		public boolean usedLLFallback() {
+			return llFallback;
+		}
+	}
+
+	/**
+	 * Parse a whole Esper file. Most input parses fine with the much cheaper SLL prediction mode, so try that first
+	 * and bail out at the first error. Only if that fails (because the input really is wrong, or because it needs the
+	 * full context that SLL doesn't look at) do we rewind and parse again with full LL, throwing an EsperSyntaxException
+	 * for the first error.
+	 * The tokens are already buffered at that point, so the lexer (and the comments it collects) only runs once.
+	 */
+	static EsperParser.EsperFileContext parse(EsperParser parser, CommonTokenStream tokens) {
+		parseCount.incrementAndGet();
+		parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+		parser.removeErrorListeners();
+		parser.setErrorHandler(new BailErrorStrategy());
+		try {
+			try {
+				return parser.esperFile();
+			} catch (ParseCancellationException e) {
+				llFallbackCount.incrementAndGet();
+				tokens.seek(0);
+				parser.reset();
+				parser.addErrorListener(CustomANTLRErrorStrategy.ErrorListener.INSTANCE);
+				parser.setErrorHandler(new CustomANTLRErrorStrategy());
+				parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+				return parser.esperFile();
+			}
+		} catch (StackOverflowError e) {
+			throw EsperSyntaxException.nestedTooDeeply(parser.getCurrentToken(), e);
+		}
+	}
+
+	/**
+	 * Parse and translate a file a statement at a time.
+	 * @param chars if not null, the characters before each statement are discarded once they're no longer needed
+	 * @param spool see TranslateEsperFile.beginStatements
+	 * @param llFallback set to true if the LL parse was needed for any statement
+	 */
+	private void translateIncrementally(TranslateEsperFile translateEsperFile, EsperParser parser, TokenStream tokens, ReaderCharStream chars, boolean spool, boolean[] llFallback) {
+		translateEsperFile.beginStatements(spool);
+		EsperParser.EsperFileHeaderContext header = parseOrSkip(translateEsperFile, parser, tokens, EsperParser::esperFileHeader, llFallback);
+		translateEsperFile.translateModuleDecl(header == null ? null : header.moduleDecl());
+		while (tokens.LA(1) != Token.EOF) {
+			EsperParser.StatementContext statement = parseOrSkip(translateEsperFile, parser, tokens, EsperParser::statement, llFallback);
+			if (statement != null) {
+				translateEsperFile.translateTopLevelStatement(statement);
+			}
+			if (chars != null) {
+				// Only the next statement's text is needed from now on
+				chars.discardBefore(tokens.LT(1).getStartIndex());
+			}
+		}
+		translateEsperFile.endStatements();
+	}
+
+	/**
+	 * Parse one rule (such as a statement) with parseIncrementally. If it doesn't parse and this engine recovers from
+	 * syntax errors, skip to the end of the statement, add a TODO for it to the translation and return null.
+	 */
+	private <T extends ParserRuleContext> T parseOrSkip(TranslateEsperFile translateEsperFile, EsperParser parser, TokenStream tokens, Function<EsperParser, T> rule, boolean[] llFallback) {
+		final int marker = tokens.mark();
+		final int start = tokens.index();
+		try {
+			T result = parseIncrementally(parser, tokens, rule, llFallback);
+			// The rule only has to match a prefix of the input, so check nothing was left of the statement
+			if (tokens.LA(1) != Token.EOF && !STATEMENT_START.contains(tokens.LA(1))) {
+				Token t = tokens.LT(1);
+				throw new EsperSyntaxException(tokens.getSourceName(), t.getLine(), t.getCharPositionInLine(), "extraneous input '" + t.getText() + "' expecting ';'");
+			}
+			return result;
+		} catch (EsperSyntaxException e) {
+			if (!recoverFromSyntaxErrors) throw e;
+			tokens.seek(start);
+			if (tokens.LA(1) == Token.EOF) throw e;
+			Token first = tokens.LT(1);
+			Token last = skipStatement(tokens);
+			String esper = first.getInputStream().getText(Interval.of(first.getStartIndex(), last.getStopIndex()));
+			translateEsperFile.addUnparseableStatement(esper, last.getStopIndex(), e);
+			return null;
+		} finally {
+			tokens.release(marker);
+		}
+	}
+
+	/** The tokens that a statement can start with */
+	private static final IntervalSet STATEMENT_START = EsperParser._ATN.nextTokens(EsperParser._ATN.ruleToStartState[EsperParser.RULE_statement]);
+
+	/**
+	 * Skip the tokens up to and including the next ';' (and any more straight after it) that isn't inside brackets,
+	 * which is where the next statement starts. At least one token is skipped. As the brackets of a statement that
+	 * doesn't parse may not balance, a ';' inside brackets also ends the statement if another statement starts after it.
+	 * @return the last token skipped
+	 */
+	private static Token skipStatement(TokenStream tokens) {
+		int depth = 0;
+		Token last = null;
+		while (tokens.LA(1) != Token.EOF) {
+			last = tokens.LT(1);
+			tokens.consume();
+			String text = last.getText();
+			if (last.getType() == EsperParser.LPAREN || last.getType() == EsperParser.LBRACKET || "{".equals(text)) {
+				depth++;
+			} else if (last.getType() == EsperParser.RPAREN || last.getType() == EsperParser.RBRACKET || "}".equals(text)) {
+				depth = Math.max(depth - 1, 0);
+			} else if (";".equals(text) && (depth == 0 || tokens.LA(1) == Token.EOF || STATEMENT_START.contains(tokens.LA(1)))) {
+				while (tokens.LA(1) != Token.EOF && ";".equals(tokens.LT(1).getText())) {
+					last = tokens.LT(1);
+					tokens.consume();
+				}
+				break;
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Parse one rule (such as a statement) from a token stream, trying SLL then LL like parse does.
+	 * The tokens of the rule are kept until it has been parsed, so the stream can be rewound for the LL parse.
+	 * @param llFallback set to true if the LL parse was needed
+	 */
+	private static <T extends ParserRuleContext> T parseIncrementally(EsperParser parser, TokenStream tokens, Function<EsperParser, T> rule, boolean[] llFallback) {
+		final int marker = tokens.mark();
+		final int start = tokens.index();
+		try {
+			parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+			parser.removeErrorListeners();
+			parser.setErrorHandler(new BailErrorStrategy());
+			try {
+				return rule.apply(parser);
+			} catch (ParseCancellationException e) {
+				llFallback[0] = true;
+				tokens.seek(start);
+				parser.addErrorListener(CustomANTLRErrorStrategy.ErrorListener.INSTANCE);
+				parser.setErrorHandler(new CustomANTLRErrorStrategy());
+				parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+				return rule.apply(parser);
+			}
+		} catch (StackOverflowError e) {
+			throw EsperSyntaxException.nestedTooDeeply(parser.getCurrentToken(), e);
+		} finally {
+			tokens.release(marker);
+		}
+	}
+
+	/** Number of files parsed in this process */
+	static long getParseCount() {
+		return parseCount.get();
+	}
+
+	/** Number of files parsed in this process that needed the full LL parse, because the SLL one failed */
+	static long getLLFallbackCount() {
+		return llFallbackCount.get();
+	}
+
+	/** @see getParseCount */
+	private static final AtomicLong parseCount = new AtomicLong();
+
+	/** @see getLLFallbackCount */
+	private static final AtomicLong llFallbackCount = new AtomicLong();
+
+	/**
+	 * Each thread's lexer, which is given a new input stream for each translation. This (and PARSER) is an anonymous
+	 * class rather than ThreadLocal.withInitial with a lambda, because bootstrapping the first lambda adds noticeably to
+	 * the startup time of a single translation.
+	 */
+	private static final ThreadLocal<EsperLexer> LEXER = new ThreadLocal<EsperLexer>() {
+		@Override
+		protected EsperLexer initialValue() {
+			return new EsperLexer(null);
+		}
+	};
+
+	/** Each thread's parser, which is given a new token stream for each translation */
+	private static final ThreadLocal<EsperParser> PARSER = new ThreadLocal<EsperParser>() {
+		@Override
+		protected EsperParser initialValue() {
+			return new EsperParser(null);
+		}
+	};
+
+	/**
+	 * This customized token factory extracts esper comments using channel as a filter
+	 * and adds the comments to the @translateEsperFile to be used at later point in time
+	 * */
+	private static class CustomCommonTokenFactory extends CommonTokenFactory {
+
+		private EsperLexer lexer;
+
+		private int lastTokenIndex = 0;
+
+		/**
+		 * TranslateEsperFile visitor to add comments to
+		 */
+		private TranslateEsperFile translateEsperFile;
+
+		CustomCommonTokenFactory (TranslateEsperFile translateEsperFile, EsperLexer lexer) {
+			this(translateEsperFile, lexer, false);
+		}
+
+		/** @param copyText see CommonTokenFactory */
+		CustomCommonTokenFactory (TranslateEsperFile translateEsperFile, EsperLexer lexer, boolean copyText) {
+			super(copyText);
+			this.translateEsperFile = translateEsperFile;
+			this.lexer = lexer;
+		}
+
+		/**
+		 *  Parser only reads token from the default channel and ignores the hidden channel tokens
+		 *  Grammar is configured to push the esper comments to the hidden channel
+		 *  This overridden method collects the comments using channel as a filter during tokenization by lexer
+		 */
+		@Override
+		public CommonToken create(Pair<TokenSource, CharStream> source, int type, String text, int channel, int start, int stop, int line, int charPositionInLine) {
+			CommonToken token = super.create(source, type, text, channel, start, stop, line, charPositionInLine);
+			if (Lexer.HIDDEN == channel ) {
+				// if the lastTokenWasOnSameLine, this comment belongs to the last token - or if that was a comment too,
+				// to whatever that comment belongs to, so that comments are always added in order
+				if (!lexer.lastTokenWasOnSameLine) {
+					lastTokenIndex = token.getStartIndex();
+				}
+				translateEsperFile.addComment(lastTokenIndex, token.getText());
+			} else {
+				lastTokenIndex = token.getStopIndex();
+			}
+			lexer.lastTokenWasOnSameLine = true;
+			return token;
+		}
+	}
+
+	/**
+	 * Passes on only the tokens on the default channel, as UnbufferedTokenStream (unlike CommonTokenStream) gives the
+	 * parser every token. The comments on the hidden channel have already been collected by the token factory.
+	 */
+	private static class DefaultChannelTokenSource implements TokenSource {
+		private final TokenSource source;
+
+		DefaultChannelTokenSource(TokenSource source) {
+			this.source = source;
+		}
+
+		@Override
+		public Token nextToken() {
+			Token t;
+			do {
+				t = source.nextToken();
+			} while (t.getChannel() != Token.DEFAULT_CHANNEL && t.getType() != Token.EOF);
+			return t;
+		}
+
+		@Override
+		public int getLine() {
+			return source.getLine();
+		}
+
+		@Override
+		public int getCharPositionInLine() {
+			return source.getCharPositionInLine();
+		}
+
+		@Override
+		public CharStream getInputStream() {
+			return source.getInputStream();
+		}
+
+		@Override
+		public String getSourceName() {
+			return source.getSourceName();
+		}
+
+		@Override
+		public void setTokenFactory(TokenFactory<?> factory) {
+			source.setTokenFactory(factory);
+		}
+
+		@Override
+		public TokenFactory<?> getTokenFactory() {
+			return source.getTokenFactory();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+/**
+ * Translations of the parse nodes of a single statement that have already been made, so that a node that is translated
+ * more than once (such as a 'where' condition, which is tried in the event expression and then put in the nested if)
+ * is only translated once.
+ *
+ * Only translations that had no effects go in here - anything that added a using, a utility action, a unique name or
+ * an asynchronous call to the statement must be translated again for that to happen again. The scope keeps track of
+ * that by calling effect (see Scope.effectCount). Nodes are keyed by identity, as the same text can translate
+ * differently in different places.
+ */
+class TranslationMemo {
+
+	/** The translation of each node, with the scope it was translated in */
+	private final Map<ParserRuleContext, Translation> translations = new IdentityHashMap<ParserRuleContext, Translation>();
+
+	/** @see effect */
+	private int effectCount = 0;
+
+	/** Called for everything a translation does to the statement apart from returning its EPL */
+	void effect() {
+		effectCount++;
+	}
+
+	/** The number of times effect has been called, so a translator can tell whether a translation had any effects */
+	int getEffectCount() {
+		return effectCount;
+	}
+
+	/** Returns a copy of the translation of node in a scope that translates the same as view, or null if there isn't one */
+	EPLOutput get(ParserRuleContext node, Scope view) {
+		Translation t = translations.get(node);
+		if (t == null || t.view != view) return null;
+		return t.epl.copy();
+	}
+
+	/** Remember the translation of node in view, which must not have had any effects - epl isn't changed */
+	void put(ParserRuleContext node, Scope view, EPLOutput epl) {
+		translations.put(node, new Translation(view, epl.copy()));
+	}
+
+	/** Forget everything, for when something changes what a node translates to (such as a new variable) */
+	void clear() {
+		translations.clear();
+	}
+
+	private static final class Translation {
+		private final Scope view;
+		private final EPLOutput epl;
+
+		Translation(Scope view, EPLOutput epl) {
+			this.view = view;
+			this.epl = epl;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+
+/**
+ * Keeps a warm translator running and serves translation requests, so that callers that translate many files over
+ * time only pay for JVM startup once.
+ *
+ * The protocol is newline-delimited JSON: each line of input is one request object, and each request gets exactly one
+ * response object on a line of its own. Requests are translated concurrently, so responses can come back in a
+ * different order from the requests - use the request's "id" to match them up. A request looks like:
+ *
+ *   {"id": 1, "path": "/rules/MyEsper.cep", "ignoreComments": false}
+ *   {"id": 2, "source": "select * from EventCreated e;", "fileName": "Inline.cep"}
+ *
+ * and a response like:
+ *
+ *   {"id": 1, "ok": true, "epl": "...", "todos": 2, "warnings": 1, "diagnostics": [...], "llFallback": false, "queueMs": 0, "translateMs": 21}
+ *   {"id": 2, "ok": false, "error": "..."}
+ *
+ * If the Esper doesn't parse, the error response also has the "line" and "column" of the syntax error.
+ */
+class TranslationServer {
+
+	/** Translations of statements that are repeated across requests */
+	private final StatementCache statementCache = new StatementCache(StatementCache.DEFAULT_MAX_ENTRIES);
+
+	/** Used for requests that don't set ignoreComments */
+	private final TranslationEngine engine;
+
+	/** Used for requests with "ignoreComments": true */
+	private final TranslationEngine ignoreCommentsEngine;
+
+	/** Translates the requests from every client */
+	private final ExecutorService pool;
+
+	/** @param recoverFromSyntaxErrors see TranslationEngine */
+	TranslationServer(int threads, boolean recoverFromSyntaxErrors) {
+		this.pool = Executors.newFixedThreadPool(threads, TranslationThread.factory("e2a-server"));
+		this.engine = new TranslationEngine(false, recoverFromSyntaxErrors, statementCache);
+		this.ignoreCommentsEngine = new TranslationEngine(true, recoverFromSyntaxErrors, statementCache);
+	}
+
+	/** Serve requests from in, writing the responses to out, until in reaches end of file and every response is written */
+	void serve(InputStream in, OutputStream out) throws IOException {
+		final BufferedReader requests = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		final Writer responses = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		// Keeps track of the requests still in progress, so we don't return before they've all been answered
+		final Phaser inProgress = new Phaser(1);
+		String line;
+		while ((line = requests.readLine()) != null) {
+			if (line.trim().isEmpty()) continue;
+			final String request = line;
+			final long received = System.nanoTime();
+			inProgress.register();
+			pool.execute(() -> {
+				try {
+					String response = respond(request, received);
+					synchronized (responses) {
+						responses.write(response);
+						responses.write('\n');
+						responses.flush();
+					}
+				} catch (IOException e) {
+					// The client has gone away, so there's nobody to tell
+				} finally {
+					inProgress.arriveAndDeregister();
+				}
+			});
+		}
+		inProgress.arriveAndAwaitAdvance();
+		responses.flush();
+	}
+
+	/** Accept clients on a TCP port on the loopback interface forever, serving each one on its own thread */
+	void listen(int port) throws IOException {
+		try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+			System.err.println("Listening for translation requests on " + server.getLocalSocketAddress());
+			while (true) {
+				final Socket client = server.accept();
+				Thread t = new Thread(() -> {
+					try (Socket s = client) {
+						serve(s.getInputStream(), s.getOutputStream());
+					} catch (IOException e) {
+						System.err.println("Lost connection to " + client.getRemoteSocketAddress() + ": " + e.getMessage());
+					}
+				}, "e2a-client-" + client.getRemoteSocketAddress());
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+	}
+
+	/** Handle a single request line, returning the response line */
+	private String respond(String requestLine, long receivedNanos) {
+		final long start = System.nanoTime();
+		Object id = null;
+		try {
+			Map<String, Object> request = Json.parseObject(requestLine);
+			id = request.get("id");
+			TranslationEngine e = Boolean.TRUE.equals(request.get("ignoreComments")) ? ignoreCommentsEngine : engine;
+			TranslationEngine.Result result;
+			if (request.get("source") instanceof String) {
+				Object fileName = request.get("fileName");
+				result = e.translate((String) request.get("source"), fileName instanceof String ? (String) fileName : "Esper.cep");
+			} else if (request.get("path") instanceof String) {
+				result = e.translate(Paths.get((String) request.get("path")));
+			} else {
+				return error(id, "Request must have a \"path\" or \"source\" string");
+			}
+			return new Json.ObjectBuilder()
+				.addValue("id", id)
+				.add("ok", true)
+				.add("epl", result.getEPLText())
+				.add("todos", result.getTodoCount())
+				.add("warnings", result.getWarningCount())
+				.add("diagnostics", result.getDiagnostics())
+				.add("llFallback", result.usedLLFallback())
+				.add("queueMs", (start - receivedNanos) / 1000000)
+				.add("translateMs", (System.nanoTime() - start) / 1000000)
+				.toString();
+		} catch (EsperSyntaxException e) {
+			return new Json.ObjectBuilder()
+				.addValue("id", id)
+				.add("ok", false)
+				.add("error", e.getMessage())
+				.add("line", e.getLine())
+				.add("column", e.getCharPositionInLine())
+				.toString();
+		} catch (Json.ParseException e) {
+			return error(id, "Invalid request: " + e.getMessage());
+		} catch (NoSuchFileException e) {
+			return error(id, "File not found: " + e.getMessage());
+		} catch (IOException | RuntimeException e) {
+			return error(id, e.toString());
+		} catch (StackOverflowError e) {
+			// The stack has unwound by now, so the server can carry on with other requests
+			return error(id, "The Esper is nested too deeply to translate");
+		} catch (OutOfMemoryError e) {
+			// As has whatever was allocated for this translation
+			return error(id, "Ran out of memory translating the Esper");
+		}
+	}
+
+	private static String error(Object id, String message) {
+		return new Json.ObjectBuilder().addValue("id", id).add("ok", false).add("error", message).toString();
+	}
+}
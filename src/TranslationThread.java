@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread with a stack big enough to parse and translate deeply nested Esper. The parser that ANTLR generates calls
+ * itself for each level of nesting (such as each pair of parentheses), so an expression nested a few thousand levels
+ * deep overflows the default stack of a thread.
+ *
+ * TranslationEngine translates on the calling thread, and only starts one of these when that thread's stack overflows
+ * (or to stream a translation, as that can't be retried). The pools that translate many files make their threads with
+ * factory, so nothing they translate needs another thread.
+ */
+final class TranslationThread extends Thread {
+
+	/**
+	 * Stack size of each thread, which is enough for several tens of thousands of levels of nesting. This is only
+	 * address space until the translation of something that deeply nested actually uses it.
+	 */
+	static final long STACK_SIZE = 512L * 1024 * 1024;
+
+	private TranslationThread(Runnable task, String name) {
+		super(null, task, name, STACK_SIZE);
+		// Like the threads of a ForkJoinPool, so that an engine's threads don't keep the JVM alive
+		setDaemon(true);
+	}
+
+	/** Makes threads for a pool, named prefix-1, prefix-2 and so on */
+	static ThreadFactory factory(String prefix) {
+		final AtomicInteger count = new AtomicInteger();
+		return task -> new TranslationThread(task, prefix + "-" + count.incrementAndGet());
+	}
+
+	/** Something to do on a TranslationThread, which may throw an E */
+	interface Task<T, E extends Exception> {
+		T call() throws E;
+	}
+
+	/** Do task on a TranslationThread (starting one if this isn't already one), returning its result or throwing what it throws */
+	static <T, E extends Exception> T call(Task<T, E> task) throws E {
+		if (Thread.currentThread() instanceof TranslationThread) {
+			return task.call();
+		}
+		final Object[] result = new Object[1];
+		final Throwable[] thrown = new Throwable[1];
+		Thread t = new TranslationThread(() -> {
+			try {
+				result[0] = task.call();
+			} catch (Exception | Error e) {
+				thrown[0] = e;
+			}
+		}, "e2a-translation");
+		t.start();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				t.join();
+				break;
+			} catch (InterruptedException e) {
+				// The translation can't be stopped part way through, so wait for it and say we were interrupted afterwards
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (thrown[0] instanceof Error) throw (Error) thrown[0];
+		if (thrown[0] != null) {
+			// Either an E or a RuntimeException, as that's all task.call can throw
+			@SuppressWarnings("unchecked")
+			E e = (E) thrown[0];
+			throw e;
+		}
+		@SuppressWarnings("unchecked")
+		T ret = (T) result[0];
+		return ret;
+	}
+}
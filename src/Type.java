@@ -7,28 +7,27 @@
  */
 package com.apama.e2a;
 
-import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.Set;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.TreeMap;
 import org.antlr.v4.runtime.ParserRuleContext;
 
 /** Represents a type in Esper, with details on how to translate its use into EPL. For most types, the name of the sub-class is the name of the type in Esper. */
 class Type {
 	Type(String fqNameInEPL) {
 		this.fqNameInEPL = fqNameInEPL;
+		this.baseNameInEPL = fqNameInEPL == null ? null : fqNameInEPL.substring(fqNameInEPL.lastIndexOf('.') + 1);
 	}
 
 	/** Fully qualified name in EPL (including package) */
 	private final String fqNameInEPL;
 
+	/** Base name in EPL, worked out once as it's asked for a lot */
+	private final String baseNameInEPL;
+
 	/** Get the base name (in EPL) of this type - that is, not fully-qualified */
 	public EPLOutput nameInEPL() {
-		String[] split = fqNameInEPL.split("\\.");
-		return new EPLOutput(split[split.length - 1]);
+		return new EPLOutput(baseNameInEPL);
 	}
 
 	/** Return string of class name */
@@ -38,7 +37,7 @@ class Type {
 
 	/** Returned base name (in EPL) of this type as a String - i.e. not fully qualified */
 	public String getEPLName() {
-		return nameInEPL().formatOutput();
+		return baseNameInEPL != null ? baseNameInEPL : nameInEPL().formatOutput();
 	}
 
 	/** Get the fully-qualified name (in EPL) of this type */
@@ -46,6 +45,11 @@ class Type {
 		return new EPLOutput(fqNameInEPL);
 	}
 
+	/** Get the fully-qualified name (in EPL) of this type as a String */
+	public String getFqEPLName() {
+		return fqNameInEPL != null ? fqNameInEPL : fqNameInEPL().formatOutput();
+	}
+
 	/** Name as it appears in the Esper source */
 	public String getNameInEsper() {
 		String ret = this.getClassName();
@@ -55,25 +59,15 @@ class Type {
 
 	/** Synthesise a statement for sending an instance of this for the 'insert into' part of a statement */
 	public EPLOutput howToSend() {
-		return new EPLOutput(String.format("send %s to %s.SEND_CHANNEL;", Scope.COASSIGNEE_NAME, getEPLName()));
-	}
-
-	/** Find a type by its name (in Esper). Returns Unknown if it's not there. */
-	public static final Type getByEsperName(ParserRuleContext nameInEsper) {
-		return getByEsperName(nameInEsper.getText());
-	}
-	
-	/** Find a type by its name (in Esper). Returns Unknown if it's not there. */
-	public static final Type getByEsperName(String nameInEsper) {
-		for(Type e : all) {
-			if(e.getNameInEsper().toLowerCase().equals(nameInEsper.toLowerCase())) return e;
-		}
-		return new Unknown(nameInEsper);
+		return new EPLCode.Send(Scope.COASSIGNEE_NAME, getEPLName() + ".SEND_CHANNEL").toEPLOutput();
 	}
 
-	/** If Esper contains a custom schema, the codegen should add it as a type here, so it is accessible to getByEsperName */
-	public static final void declType(Type t) {
-		all.add(t);
+	/**
+	 * Describes everything about this type that can affect a translation that uses it.
+	 * @see StatementCache
+	 */
+	String getFingerprint() {
+		return getClass().getName() + " " + getFqEPLName();
 	}
 
 	/** Check if there is any EPL mapping defined for fields in Esper. Else return the path as it is. */
@@ -90,39 +84,6 @@ class Type {
 		return getEPLName() + ".SUBSCRIBE_CHANNEL";
 	}
 
-	/** List of all types for 'getByEsperName' */
-	private static List<Type> all = populateTypeList();
-
-	private static List<Type> populateTypeList() {
-		List<Type> result = new ArrayList<>();
-
-		// List of Type and all its (non-static) child classes
-		List<Class<?>> typeClasses = new ArrayList<>();
-		typeClasses.add(Type.class);
-		typeClasses.add(InputType.class);
-		typeClasses.add(SpecialEsperType.class);
-		List<Class<?>> declaredTypes = new ArrayList<>();
-		for(Class<?> c: typeClasses){
-			for (Class<?> declaredClass: c.getDeclaredClasses()){
-				declaredTypes.add(declaredClass);
-			}
-		}
-
-		for(Class<?> c : declaredTypes) {
-			if(Type.class.isAssignableFrom(c)) {
-				if(c.getDeclaredConstructors()[0].getParameterTypes().length == 0) {
-					try {
-						result.add((Type) c.getDeclaredConstructors()[0].newInstance());
-					} catch ( InstantiationException|IllegalAccessException|
-						java.lang.reflect.InvocationTargetException e) {
-						System.err.println(e.getMessage());
-					}
-				}
-			}
-		}
-		return result;
-	}
-
 	/** Represents any type we don't know about */
 	static class Unknown extends Type {
 		Unknown(String badName) {
@@ -130,12 +91,15 @@ class Type {
 			this.badName = badName;
 		}
 
+		/** Unknown type with no name, shared as the type of every EPLOutput that hasn't been given one */
+		static final Unknown NOTHING = new Unknown("");
+
 		@Override
 		public EPLOutput nameInEPL() { return EPLOutput.cannotTranslate("Don't know " + badName); }
 		@Override
 		public EPLOutput fqNameInEPL() { return nameInEPL(); }
 
-		private String badName;
+		private final String badName;
 	}
 
 	/** For schemas declared within an Esper file - by definition, the name in EPL will be the same as the name in Esper, and they only get sent internally (routed) */
@@ -167,9 +131,18 @@ class Type {
 			return this.getEPLName();
 		}
 
+		@Override
+		String getFingerprint() {
+			StringBuilder ret = new StringBuilder(super.getFingerprint()).append(" {");
+			for (Map.Entry<String, Type> member : new TreeMap<String, Type>(members).entrySet()) {
+				ret.append(member.getKey()).append(": ").append(member.getValue().getFingerprint()).append("; ");
+			}
+			return ret.append("}").toString();
+		}
+
 		@Override
 		public EPLOutput howToSend() {
-			return new EPLOutput("route " + Scope.COASSIGNEE_NAME + ";");
+			return new EPLCode.Route(Scope.COASSIGNEE_NAME).toEPLOutput();
 		}
 	}
 
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+/**
+ * The types known to a single translation: the built-in types, which are shared by every translation, plus the schemas
+ * declared in the Esper file being translated.
+ *
+ * Names in Esper are case-insensitive, so lookups are keyed by the lower-cased name.
+ */
+class TypeRegistry {
+
+	/** Find a type by its name (in Esper). Returns Unknown if it's not there. */
+	public Type getByEsperName(ParserRuleContext nameInEsper) {
+		return getByEsperName(nameInEsper.getText());
+	}
+
+	/** Find a type by its name (in Esper). Returns Unknown if it's not there. */
+	public Type getByEsperName(String nameInEsper) {
+		String key = nameInEsper.toLowerCase();
+		Type ret = BUILT_IN_TYPES.get(key);
+		if (ret == null) {
+			ret = declaredTypes.get(key);
+		}
+		return ret != null ? ret : new Type.Unknown(nameInEsper);
+	}
+
+	/**
+	 * If Esper contains a custom schema, the codegen should add it as a type here, so it is accessible to getByEsperName.
+	 * A schema can't hide a built-in type, and if a name is declared twice the first declaration wins.
+	 */
+	public void declType(Type t) {
+		declaredTypes.putIfAbsent(t.getNameInEsper().toLowerCase(), t);
+	}
+
+	/**
+	 * Describes the types declared in the Esper file so far - see StatementCache.
+	 * The built-in types are the same for every translation, so they aren't included.
+	 */
+	public String getFingerprint() {
+		StringBuilder ret = new StringBuilder();
+		for (Map.Entry<String, Type> e : new TreeMap<String, Type>(declaredTypes).entrySet()) {
+			ret.append(e.getKey()).append(" = ").append(e.getValue().getFingerprint()).append('\n');
+		}
+		return ret.toString();
+	}
+
+	/** Types declared in the Esper file, keyed by lower-cased name in Esper */
+	private final Map<String, Type> declaredTypes = new HashMap<String, Type>();
+
+	/** Every type that is known without being declared in the Esper file, keyed by lower-cased name in Esper */
+	private static final Map<String, Type> BUILT_IN_TYPES = indexBuiltInTypes();
+
+	private static Map<String, Type> indexBuiltInTypes() {
+		List<Type> builtIns = Arrays.asList(
+			// Built-in C8Y types, plus the wrapper types for their input and output streams, create/update/delete etc.
+			new Type.Alarm(), new Type.Event(), new Type.ManagedObject(), new Type.Measurement(), new Type.Operation(),
+			new Type.CreateAlarm(), new Type.UpdateAlarm(), new Type.AlarmCreated(), new Type.AlarmUpdated(),
+			new Type.CreateEvent(), new Type.UpdateEvent(), new Type.DeleteEvent(),
+			new Type.EventCreated(), new Type.EventUpdated(), new Type.EventDeleted(),
+			new Type.CreateManagedObject(), new Type.UpdateManagedObject(), new Type.DeleteManagedObject(),
+			new Type.ManagedObjectCreated(), new Type.ManagedObjectUpdated(), new Type.ManagedObjectDeleted(),
+			new Type.CreateMeasurement(), new Type.MeasurementCreated(), new Type.DeleteMeasurement(), new Type.MeasurementDeleted(),
+			new Type.SendEmail(), new Type.SendSms(),
+			new Type.CreateOperation(), new Type.UpdateOperation(), new Type.OperationCreated(), new Type.OperationUpdated(),
+			// built-in types
+			new Type.Number(), new Type._String(), new Type._boolean(), new Type._float(), new Type._double(),
+			new Type._int(), new Type.integer(), new Type.Date(), new Type._BigDecimal(), new Type._long(),
+			// types which Esper spells with a full Java class name
+			new SpecialEsperType.ModelId(), new SpecialEsperType.BigDecimalFullPath());
+
+		Map<String, Type> result = new HashMap<String, Type>();
+		for (Type t : builtIns) {
+			Type clash = result.put(t.getNameInEsper().toLowerCase(), t);
+			assert clash == null : "Two built-in types named " + t.getNameInEsper();
+		}
+		return Collections.unmodifiableMap(result);
+	}
+}
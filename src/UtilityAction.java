@@ -9,7 +9,6 @@ package com.apama.e2a;
 
 import java.util.Map;
 import java.util.HashMap;
-import java.util.Iterator;
 
 /** Class for creating an EPLOutput object for an EPL action */
 public class UtilityAction {
@@ -22,27 +21,7 @@ public class UtilityAction {
 
 	/** Returns the EPLOutput for an action */
 	public EPLOutput addEPLAction(){
-		EPLOutput actionOutput = new EPLOutput().addLine(" ");
-		if (!description.trim().isEmpty()) {
-			actionOutput.addLine("/**").addLine("* ").add(description).addLine("*/");
-		}
-		actionOutput.addLine("action ").add(name).add("(");
-		// Add parameter list to action definition
-		Iterator<Map.Entry<String, String>> it = params.entrySet().iterator();
-		while(it.hasNext()){
-			Map.Entry<String, String> param = it.next();
-			// In params map, value is argument type; key is argument name 
-			actionOutput.add(param.getValue().toString()).add(" "+param.getKey().toString());
-			// separate params with commas
-			if (it.hasNext()){
-				actionOutput.add(", ");
-			}
-		}
-		actionOutput.add(")");
-		if(returnType != null && !returnType.trim().isEmpty()){
-			actionOutput.add(" returns ").add(returnType);
-		}
-		return actionOutput.addBlock(body).addLine(" ");
+		return new EPLCode.Action(name, params, returnType, description, body).toEPLOutput();
 	}
 
 	public String getName(){
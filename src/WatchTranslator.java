@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Watches a directory tree and translates each Esper file in it whenever it changes, so that someone fixing up the
+ * Esper (or the TODOs in its translation) sees the new translation within milliseconds of saving, rather than paying
+ * for JVM startup and a cold parser every time.
+ *
+ * Every Esper file is translated once at the start. After that, a burst of changes (such as an editor writing a file
+ * in several steps, or a version control checkout) is collected until there have been no changes for DEBOUNCE_MILLIS,
+ * then each changed file whose contents are different from the last time it was translated is translated again.
+ */
+class WatchTranslator {
+
+	/** How long to wait after a change for any more changes before translating */
+	static final long DEBOUNCE_MILLIS = 100;
+
+	/** Kept warm for the whole time we're watching */
+	private final TranslationEngine engine;
+
+	/** Translations of statements, so only the statements that were edited in a changed file are translated again */
+	private final StatementCache statementCache = new StatementCache(StatementCache.DEFAULT_MAX_ENTRIES);
+
+	/** The directory tree being watched */
+	private final Path dir;
+
+	/** Root of the mirrored output tree, or null to write each output file next to its input */
+	private final Path outputDir;
+
+	/** Hash of the contents of each Esper file when it was last translated, keyed by absolute path */
+	private final Map<Path, byte[]> translatedHashes = new HashMap<Path, byte[]>();
+
+	/** The directory that each registered watch key is for */
+	private final Map<WatchKey, Path> watchedDirs = new HashMap<WatchKey, Path>();
+
+	WatchTranslator(boolean ignoreComments, boolean recoverFromSyntaxErrors, Path dir, Path outputDir) {
+		this.engine = new TranslationEngine(ignoreComments, recoverFromSyntaxErrors, statementCache);
+		this.dir = dir.toAbsolutePath().normalize();
+		this.outputDir = outputDir;
+	}
+
+	/** Translate every Esper file under the directory, then keep translating them as they change until interrupted */
+	void run(PrintStream out) throws IOException, InterruptedException {
+		try (WatchService watcher = dir.getFileSystem().newWatchService()) {
+			Set<Path> all = new TreeSet<Path>();
+			registerAll(watcher, dir, all);
+			translate(all, out);
+			out.println(String.format("Watching %s for changes to %s files (press Ctrl+C to stop)", dir, BatchFiles.ESPER_FILE_EXTENSION));
+
+			while (true) {
+				Set<Path> changed = new TreeSet<Path>();
+				WatchKey key = watcher.take();
+				// Keep collecting changes until things have been quiet for a while
+				while (key != null) {
+					if (!collectChanges(watcher, key, changed)) {
+						// Some changes were lost, so look at everything
+						registerAll(watcher, dir, changed);
+					}
+					key = watcher.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+				}
+				translate(changed, out);
+			}
+		}
+	}
+
+	/**
+	 * Add the Esper files that the events for a key are about to changed, and start watching any new directories
+	 * @return false if events were lost
+	 */
+	private boolean collectChanges(WatchService watcher, WatchKey key, Set<Path> changed) throws IOException {
+		boolean complete = true;
+		Path keyDir = watchedDirs.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				complete = false;
+				continue;
+			}
+			if (keyDir == null) continue;
+			Path path = keyDir.resolve((Path) event.context());
+			if (event.kind() == ENTRY_DELETE) {
+				translatedHashes.remove(path);
+			} else if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+				registerAll(watcher, path, changed);
+			} else if (isEsperFile(path)) {
+				changed.add(path);
+			}
+		}
+		if (!key.reset()) {
+			watchedDirs.remove(key);
+		}
+		return complete;
+	}
+
+	/** Watch dir and every directory under it, adding the Esper files in them to found */
+	private void registerAll(WatchService watcher, Path dir, Set<Path> found) throws IOException {
+		try (Stream<Path> walk = Files.walk(dir)) {
+			for (Path p : (Iterable<Path>) walk::iterator) {
+				if (Files.isDirectory(p)) {
+					watchedDirs.put(p.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), p);
+				} else if (isEsperFile(p)) {
+					found.add(p);
+				}
+			}
+		}
+	}
+
+	private static boolean isEsperFile(Path path) {
+		return BatchFiles.isEsperFile(path.getFileName().toString()) && !Files.isDirectory(path);
+	}
+
+	/** Translate each of the files whose contents have changed, printing a line for each one */
+	private void translate(Set<Path> files, PrintStream out) {
+		for (Path input : files) {
+			String summary = translate(input);
+			if (summary != null) out.println(summary);
+		}
+	}
+
+	/** Translate a single file, returning the line to print, or null if it hasn't changed since it was last translated */
+	private String translate(Path input) {
+		final long start = System.nanoTime();
+		Path output = BatchFiles.outputPathFor(input, dir.relativize(input), outputDir);
+		try {
+			byte[] source = Files.readAllBytes(input);
+			byte[] hash = BatchFiles.sha256().digest(source);
+			if (MessageDigest.isEqual(hash, translatedHashes.get(input))) {
+				return null;
+			}
+			// Even if this fails, there's no point trying again until it changes
+			translatedHashes.put(input, hash);
+
+			TranslationEngine.Result result = engine.translate(new String(source, StandardCharsets.UTF_8), input.getFileName().toString());
+			if (output.getParent() != null) {
+				Files.createDirectories(output.getParent());
+			}
+			Main.generateOutputEPLFile(output.toString(), result);
+			return BatchFiles.translated("ok", dir.relativize(input), output, result.getTodoCount(), result.getWarningCount(), start);
+		} catch (NoSuchFileException e) {
+			// Deleted (or renamed) since the change was noticed
+			translatedHashes.remove(input);
+			return null;
+		} catch (EsperSyntaxException e) {
+			return BatchFiles.failed(dir.relativize(input), e, start);
+		} catch (IOException | RuntimeException e) {
+			return BatchFiles.failed(dir.relativize(input), e, start);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020-2021 Software AG, Darmstadt, Germany and/or its licensors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package com.apama.e2a;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Translates the Esper files in a zip archive, writing each translation to an output zip under the name of its Esper
+ * file with ".mon" appended - without unpacking anything to disk.
+ *
+ * The input is read a single entry at a time and the entries are translated on a pool of threads. Only a few entries
+ * more than there are threads are held in memory at once, and the output entries are written in the same order as the
+ * input entries, so the output doesn't depend on the number of threads.
+ */
+class ZipTranslator {
+
+	/** Shared by all of the worker threads */
+	private final TranslationEngine engine;
+
+	/** Translations of statements that are repeated in several entries */
+	private final StatementCache statementCache = new StatementCache(StatementCache.DEFAULT_MAX_ENTRIES);
+
+	/** Number of worker threads */
+	private final int threads;
+
+	ZipTranslator(boolean ignoreComments, boolean recoverFromSyntaxErrors, int threads) {
+		this.engine = new TranslationEngine(ignoreComments, recoverFromSyntaxErrors, statementCache);
+		this.threads = threads;
+	}
+
+	/**
+	 * Translate every Esper file in input to an entry in output, printing a summary line per entry (in input order) to
+	 * out. If the output can't be written, it's deleted.
+	 * @return the number of entries that failed to translate
+	 */
+	int run(Path input, Path output, PrintStream out) throws IOException, InterruptedException {
+		final long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, TranslationThread.factory("e2a-zip"));
+		int total = 0;
+		int failed = 0;
+		try (ZipInputStream in = new ZipInputStream(Files.newInputStream(input));
+				ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(output))) {
+			// Entries being translated, oldest first
+			Deque<Future<EntryResult>> pending = new ArrayDeque<Future<EntryResult>>();
+			ZipEntry entry;
+			while ((entry = in.getNextEntry()) != null) {
+				if (entry.isDirectory() || !BatchFiles.isEsperFile(entry.getName())) continue;
+				pending.add(pool.submit(new TranslateEntry(entry, readEntry(in))));
+				total++;
+				if (pending.size() >= threads * 2) {
+					failed += write(pending.poll(), zip, out);
+				}
+			}
+			while (!pending.isEmpty()) {
+				failed += write(pending.poll(), zip, out);
+			}
+		} catch (IOException | RuntimeException | InterruptedException e) {
+			Files.deleteIfExists(output);
+			throw e;
+		} finally {
+			pool.shutdownNow();
+		}
+		out.println(String.format("Translated %d of %d files from %s to %s in %.1f s using %d threads",
+			total - failed, total, input, output, (System.nanoTime() - start) / 1e9, threads));
+		return failed;
+	}
+
+	/**
+	 * Wait for the translation of an entry and add it to the output
+	 * @return 1 if the entry failed to translate, otherwise 0
+	 */
+	private static int write(Future<EntryResult> future, ZipOutputStream zip, PrintStream out) throws IOException, InterruptedException {
+		EntryResult result;
+		try {
+			result = future.get();
+		} catch (ExecutionException e) {
+			// TranslateEntry reports its own failures, so this is only something unexpected such as running out of memory
+			out.println("FAILED  " + e.getCause());
+			return 1;
+		}
+		out.println(result.summary);
+		if (result.epl == null) return 1;
+		zip.putNextEntry(result.entry);
+		zip.write(result.epl);
+		zip.closeEntry();
+		return 0;
+	}
+
+	/** Read the rest of the current entry */
+	private static byte[] readEntry(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			bytes.write(buffer, 0, read);
+		}
+		return bytes.toByteArray();
+	}
+
+	/** Outcome of translating one entry */
+	private static class EntryResult {
+		/** The output entry, or null if the translation failed */
+		private final ZipEntry entry;
+		/** Contents of the output entry, or null if the translation failed */
+		private final byte[] epl;
+		/** Line to print for this entry in the summary */
+		private final String summary;
+
+		EntryResult(ZipEntry entry, byte[] epl, String summary) {
+			this.entry = entry;
+			this.epl = epl;
+			this.summary = summary;
+		}
+	}
+
+	/** Translation of a single entry */
+	private class TranslateEntry implements Callable<EntryResult> {
+		private final ZipEntry input;
+		private final byte[] source;
+
+		TranslateEntry(ZipEntry input, byte[] source) {
+			this.input = input;
+			this.source = source;
+		}
+
+		@Override
+		public EntryResult call() {
+			final long start = System.nanoTime();
+			String name = input.getName();
+			String outName = name + BatchFiles.EPL_FILE_EXTENSION;
+			try {
+				String fileName = name.substring(name.lastIndexOf('/') + 1);
+				TranslationEngine.Result result = engine.translate(new String(source, StandardCharsets.UTF_8), fileName);
+				ByteArrayOutputStream epl = new ByteArrayOutputStream(source.length * 2);
+				try (Writer writer = Main.openOutputEPL(epl)) {
+					result.writeTo(writer);
+				}
+				ZipEntry output = new ZipEntry(outName);
+				// Keep the output the same for the same input
+				output.setTime(input.getTime());
+				return new EntryResult(output, epl.toByteArray(), BatchFiles.translated("ok", name, outName, result.getTodoCount(), start));
+			} catch (EsperSyntaxException e) {
+				return new EntryResult(null, null, BatchFiles.failed(name, e, start));
+			} catch (IOException | RuntimeException e) {
+				return new EntryResult(null, null, BatchFiles.failed(name, e, start));
+			}
+		}
+	}
+
+	/** Returns true if the path names a zip archive */
+	static boolean isZip(String path) {
+		return path.toLowerCase().endsWith(".zip");
+	}
+}
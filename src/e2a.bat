@@ -1,9 +1,51 @@
 @echo off
+setlocal
 
 where java >NUL 2>&1 
-if %errorlevel%==0 (
-	java -jar "%~dp0\e2a.jar" %*
-) else (
+if not %errorlevel%==0 (
 	echo Cannot find a Java installation - try running this within an Apama command prompt.
 	exit /b 1
 )
+
+set E2A_JAR=%~dp0e2a.jar
+set E2A_JSA=%~dp0e2a.jsa
+
+rem Options that a JVM doesn't support (such as on older Java versions) are ignored rather than being an error
+set E2A_JVM_OPTIONS=-XX:+IgnoreUnrecognizedVMOptions -XX:+UnlockDiagnosticVMOptions
+
+rem Start faster by sharing the class data of the classes that a translation always loads. The archive is created the
+rem first time we run (or after the jar changes) from the class list that is shipped with the jar, and if the JVM can't
+rem use it for any reason it quietly loads the classes as normal. Delete e2a.jsa to make it be created again.
+rem xcopy /d /l only lists the jar if the archive doesn't exist or is older than the jar (the * stops it asking whether
+rem the archive is a file or a directory).
+set E2A_JSA_STALE=
+if exist "%~dp0e2a.classlist" (
+	for /f %%L in ('xcopy /d /l /y "%E2A_JAR%" "%E2A_JSA%*" 2^>NUL ^| find /i "e2a.jar"') do set E2A_JSA_STALE=true
+)
+if defined E2A_JSA_STALE (
+	java %E2A_JVM_OPTIONS% -Xshare:dump -XX:SharedClassListFile="%~dp0e2a.classlist" -XX:SharedArchiveFile="%E2A_JSA%.tmp" -cp "%E2A_JAR%" >NUL 2>&1
+	if errorlevel 1 (
+		rem Don't try again every time - an empty archive is ignored
+		del /f /q "%E2A_JSA%.tmp" >NUL 2>&1
+		type NUL > "%E2A_JSA%" 2>NUL
+	) else (
+		move /y "%E2A_JSA%.tmp" "%E2A_JSA%" >NUL 2>&1
+	)
+)
+rem An empty archive is the one left when creating it failed
+if exist "%E2A_JSA%" for %%S in ("%E2A_JSA%") do if %%~zS GTR 0 set E2A_JVM_OPTIONS=%E2A_JVM_OPTIONS% -Xshare:auto -XX:SharedArchiveFile="%E2A_JSA%"
+
+rem Translating a single file is over too soon to benefit from the optimising JIT compiler or a concurrent garbage
+rem collector, so only use those for the modes that run for longer
+set E2A_SINGLE_FILE=-XX:TieredStopAtLevel=1 -XX:+UseSerialGC
+for %%A in (%*) do (
+	if "%%~A"=="--batch" set E2A_SINGLE_FILE=
+	if "%%~A"=="--serve" set E2A_SINGLE_FILE=
+	if "%%~A"=="--streaming" set E2A_SINGLE_FILE=
+	if "%%~A"=="--watch" set E2A_SINGLE_FILE=
+	if /i "%%~xA"==".zip" set E2A_SINGLE_FILE=
+)
+
+rem Execute e2a.jar that's in the same directory as this script, passing all arguments through. Any options in
+rem E2A_JAVA_OPTS come last, so they override ours.
+java %E2A_JVM_OPTIONS% %E2A_SINGLE_FILE% %E2A_JAVA_OPTS% -jar "%E2A_JAR%" %*
@@ -1,11 +1,44 @@
 IFS=$'\n'
 
-# Directory this script is in
-DIRNAME=$(dirname "$0")
+# Directory this script is in - as an absolute path, because a class-data-sharing archive records where the jar was
+DIRNAME=$(cd "$(dirname "$0")" && pwd)
+JAR="$DIRNAME/e2a.jar"
 
 if which java > /dev/null; then
+	# Options that a JVM doesn't support (such as on older Java versions) are ignored rather than being an error
+	JVM_OPTIONS=(-XX:+IgnoreUnrecognizedVMOptions -XX:+UnlockDiagnosticVMOptions)
+
+	# Start faster by sharing the class data of the classes that a translation always loads. The archive is created the
+	# first time we run (or after the jar changes) from the class list that is shipped with the jar, and if the JVM
+	# can't use it for any reason it quietly loads the classes as normal. Delete e2a.jsa to make it be created again.
+	JSA="$DIRNAME/e2a.jsa"
+	if [ -f "$DIRNAME/e2a.classlist" ] && [ -w "$DIRNAME" ] && { [ ! -f "$JSA" ] || [ "$JAR" -nt "$JSA" ]; }; then
+		if java "${JVM_OPTIONS[@]}" -Xshare:dump -XX:SharedClassListFile="$DIRNAME/e2a.classlist" -XX:SharedArchiveFile="$JSA.$$" -cp "$JAR" > /dev/null 2>&1; then
+			mv -f "$JSA.$$" "$JSA"
+		else
+			# Don't try again every time - an empty archive is ignored
+			rm -f "$JSA.$$"
+			: > "$JSA"
+		fi
+	fi
+	[ -s "$JSA" ] && JVM_OPTIONS+=(-Xshare:auto -XX:SharedArchiveFile="$JSA")
+
+	# Translating a single file is over too soon to benefit from the optimising JIT compiler or a concurrent garbage
+	# collector, so only use those for the modes that run for longer
+	LONG_RUNNING=false
+	for ARG in "$@"; do
+		case "$ARG" in
+			--batch|--serve|--streaming|--watch|*.zip) LONG_RUNNING=true;;
+		esac
+	done
+	[ "$LONG_RUNNING" = false ] && JVM_OPTIONS+=(-XX:TieredStopAtLevel=1 -XX:+UseSerialGC)
+
+	# Any (space-separated) options in E2A_JAVA_OPTS come last, so they override ours
+	IFS=' ' read -r -a USER_OPTIONS <<< "$E2A_JAVA_OPTS"
+	JVM_OPTIONS+=("${USER_OPTIONS[@]}")
+
 	# Execute e2a.jar that's in the same directory as this script, passing all arguments through
-	java -jar $DIRNAME/e2a.jar $@
+	java "${JVM_OPTIONS[@]}" -jar "$JAR" $@
 else
 	echo "Cannot find a Java installation - try running this within an Apama command prompt"
 	exit 1